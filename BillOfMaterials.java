@@ -0,0 +1,149 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Block counts of a section or a whole image, plus how many stacks and
+// shulker boxes are needed to carry them.
+public class BillOfMaterials {
+
+	private static final int STACK_SIZE = 64;
+	private static final int STACKS_PER_SHULKER_BOX = 27;
+
+	// block state -> count, sorted for stable reports
+	private TreeMap<String, Long> counts = new TreeMap<String, Long>();
+
+	public void add(String blockState, long count) {
+		if (count == 0) {
+			return;
+		}
+		Long oldCount = counts.get(blockState);
+		counts.put(blockState, oldCount == null ? count : oldCount + count);
+	}
+
+	public void add(BillOfMaterials other) {
+		for (Map.Entry<String, Long> entry : other.counts.entrySet()) {
+			add(entry.getKey(), entry.getValue());
+		}
+	}
+
+	public Map<String, Long> getCounts() {
+		return counts;
+	}
+
+	// water is placed with buckets from an infinite source, not carried
+	public static long getStacks(String blockState, long count) {
+		if (blockState.equals(MapConverter.BLOCK_STATE_WATER)) {
+			return 0;
+		}
+		return (count + STACK_SIZE - 1) / STACK_SIZE;
+	}
+
+	public static long getShulkerBoxes(long stacks) {
+		return (stacks + STACKS_PER_SHULKER_BOX - 1) / STACKS_PER_SHULKER_BOX;
+	}
+
+	public long getTotalCount() {
+		long count = 0;
+		for (long blockCount : counts.values()) {
+			count += blockCount;
+		}
+		return count;
+	}
+
+	public long getTotalStacks() {
+		long stacks = 0;
+		for (Map.Entry<String, Long> entry : counts.entrySet()) {
+			stacks += getStacks(entry.getKey(), entry.getValue());
+		}
+		return stacks;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Long> entry : counts.entrySet()) {
+			sb.append("\t" + entry.getKey() + ": " + entry.getValue() + "\n");
+		}
+		return sb.toString();
+	}
+
+	// writes <path>.csv and <path>.json with one entry per section (in the
+	// given order) and one for the whole image
+	public static void writeReports(ArrayList<String> sectionNames, Map<String, BillOfMaterials> sections,
+			BillOfMaterials total, String path) {
+		try {
+			Writer csv = new FileWriter(new File(path + ".csv"));
+			csv.write("section,block_state,count,stacks,shulker_boxes\n");
+			for (String sectionName : sectionNames) {
+				writeCsvRows(csv, sectionName, sections.get(sectionName));
+			}
+			writeCsvRows(csv, "total", total);
+			csv.close();
+
+			Writer json = new FileWriter(new File(path + ".json"));
+			json.write("{\n\t\"sections\": {");
+			for (int i = 0; i < sectionNames.size(); i++) {
+				json.write(i == 0 ? "\n" : ",\n");
+				json.write("\t\t" + Json.quote(sectionNames.get(i)) + ": ");
+				writeJsonObject(json, sections.get(sectionNames.get(i)), "\t\t");
+			}
+			json.write("\n\t},\n\t\"total\": ");
+			writeJsonObject(json, total, "\t");
+			json.write("\n}\n");
+			json.close();
+		} catch (IOException e) {
+			System.out.println("Something went wrong:");
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	// reads the sections of <path>.json written by writeReports back, appends
+	// them to sectionNames and sections. the total is left out.
+	public static void readSections(String path, ArrayList<String> sectionNames,
+			Map<String, BillOfMaterials> sections) throws IOException {
+		Object json = Json.read(new File(path + ".json"));
+		for (Map.Entry<?, ?> section : Json.getObject(json, "sections").entrySet()) {
+			BillOfMaterials materials = new BillOfMaterials();
+			for (Map.Entry<?, ?> block : Json.getObject(section.getValue(), "blocks").entrySet()) {
+				materials.add((String) block.getKey(), Json.getNumber(block.getValue(), "count"));
+			}
+			sectionNames.add((String) section.getKey());
+			sections.put((String) section.getKey(), materials);
+		}
+	}
+
+	private static void writeCsvRows(Writer csv, String sectionName, BillOfMaterials materials) throws IOException {
+		for (Map.Entry<String, Long> entry : materials.counts.entrySet()) {
+			long stacks = getStacks(entry.getKey(), entry.getValue());
+			// block states contain commas, always quote them
+			csv.write(sectionName + ",\"" + entry.getKey().replace("\"", "\"\"") + "\"," + entry.getValue() + ","
+					+ stacks + "," + getShulkerBoxes(stacks) + "\n");
+		}
+		long totalStacks = materials.getTotalStacks();
+		csv.write(sectionName + ",all," + materials.getTotalCount() + "," + totalStacks + ","
+				+ getShulkerBoxes(totalStacks) + "\n");
+	}
+
+	private static void writeJsonObject(Writer json, BillOfMaterials materials, String indent) throws IOException {
+		json.write("{\n" + indent + "\t\"blocks\": {");
+		boolean first = true;
+		for (Map.Entry<String, Long> entry : materials.counts.entrySet()) {
+			long stacks = getStacks(entry.getKey(), entry.getValue());
+			json.write(first ? "\n" : ",\n");
+			json.write(indent + "\t\t" + Json.quote(entry.getKey()) + ": {\"count\": " + entry.getValue()
+					+ ", \"stacks\": " + stacks + ", \"shulkerBoxes\": " + getShulkerBoxes(stacks) + "}");
+			first = false;
+		}
+		long totalStacks = materials.getTotalStacks();
+		json.write("\n" + indent + "\t},\n");
+		json.write(indent + "\t\"count\": " + materials.getTotalCount() + ",\n");
+		json.write(indent + "\t\"stacks\": " + totalStacks + ",\n");
+		json.write(indent + "\t\"shulkerBoxes\": " + getShulkerBoxes(totalStacks) + "\n");
+		json.write(indent + "}");
+	}
+
+}
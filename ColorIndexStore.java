@@ -0,0 +1,150 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Reduced colors of the whole image, one byte per pixel holding
+// colorID * 3 + variation. Either kept in the heap or in a memory-mapped temp
+// file, in which case heap use doesn't grow with the image size and the OS
+// decides which parts stay in memory.
+public class ColorIndexStore {
+
+	// upper limit for one buffer, ByteBuffers are indexed by int
+	private static final int MAX_CHUNK_BYTES = 1 << 30;
+
+	// {colorID, variation} for every byte value, shared by all pixels
+	private static final int[][] MATCHES = new int[256][];
+	static {
+		for (int i = 0; i < MATCHES.length; i++) {
+			MATCHES[i] = new int[] { i / 3, i % 3 };
+		}
+	}
+
+	private int width;
+	private int height;
+	// image rows [k * rowsPerChunk, (k + 1) * rowsPerChunk[ are in chunks[k]
+	private ByteBuffer[] chunks;
+	private int rowsPerChunk;
+
+	private RandomAccessFile file = null;
+	private File tempFile = null;
+
+	private ColorIndexStore(int width, int height) {
+		this.width = width;
+		this.height = height;
+		rowsPerChunk = Math.max(1, Math.min(height, MAX_CHUNK_BYTES / width));
+		chunks = new ByteBuffer[(height + rowsPerChunk - 1) / rowsPerChunk];
+	}
+
+	public static ColorIndexStore createInHeap(int width, int height) {
+		ColorIndexStore store = new ColorIndexStore(width, height);
+		for (int k = 0; k < store.chunks.length; k++) {
+			store.chunks[k] = ByteBuffer.allocate(store.getChunkRows(k) * width);
+		}
+		return store;
+	}
+
+	// the temp file is deleted on close or exit
+	public static ColorIndexStore createMapped(int width, int height, File folder) throws IOException {
+		ColorIndexStore store = new ColorIndexStore(width, height);
+		File tempFile = File.createTempFile("colors", ".tmp", folder);
+		tempFile.deleteOnExit();
+		store.tempFile = tempFile;
+		store.file = new RandomAccessFile(tempFile, "rw");
+		store.file.setLength((long) width * height);
+		FileChannel channel = store.file.getChannel();
+		for (int k = 0; k < store.chunks.length; k++) {
+			long offset = (long) k * store.rowsPerChunk * width;
+			store.chunks[k] = channel.map(FileChannel.MapMode.READ_WRITE, offset, store.getChunkRows(k) * width);
+		}
+		return store;
+	}
+
+	private int getChunkRows(int k) {
+		return Math.min(rowsPerChunk, height - k * rowsPerChunk);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public void set(int x, int y, int colorID, int variation) {
+		chunks[y / rowsPerChunk].put((y % rowsPerChunk) * width + x, (byte) (colorID * 3 + variation));
+	}
+
+	// returns {colorIndex, variation}, do not modify
+	public int[] get(int x, int y) {
+		return MATCHES[chunks[y / rowsPerChunk].get((y % rowsPerChunk) * width + x) & 0xFF];
+	}
+
+	// copies rows [y, y + rows[ to dest, colorID * 3 + variation per pixel
+	public void getRows(int y, int rows, byte[] dest) {
+		for (int row = 0; row < rows; row++) {
+			ByteBuffer view = chunks[(y + row) / rowsPerChunk].duplicate();
+			view.position(((y + row) % rowsPerChunk) * width);
+			view.get(dest, row * width, width);
+		}
+	}
+
+	// copy of section i.j, indexed by [x][y][i] like getMapColorMatrix used to
+	// return. the inner arrays are shared, do not modify.
+	public int[][][] getSection(int i, int j) {
+		int[][][] subMatrix = new int[128][128][];
+		for (int y = 0; y < 128; y++) {
+			for (int x = 0; x < 128; x++) {
+				subMatrix[x][y] = get(i * 128 + x, j * 128 + y);
+			}
+		}
+		return subMatrix;
+	}
+
+	// whether section i.j has the same colors in both stores
+	public boolean sectionEquals(ColorIndexStore other, int i, int j) {
+		for (int y = j * 128; y < (j + 1) * 128; y++) {
+			ByteBuffer row = chunks[y / rowsPerChunk];
+			ByteBuffer otherRow = other.chunks[y / other.rowsPerChunk];
+			int offset = (y % rowsPerChunk) * width + i * 128;
+			int otherOffset = (y % other.rowsPerChunk) * other.width + i * 128;
+			for (int x = 0; x < 128; x++) {
+				if (row.get(offset + x) != otherRow.get(otherOffset + x)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	// raw bytes, row by row
+	public void writeToFile(String fileName) throws IOException {
+		FileOutputStream fos = new FileOutputStream(new File(fileName));
+		FileChannel channel = fos.getChannel();
+		for (ByteBuffer chunk : chunks) {
+			ByteBuffer view = chunk.duplicate();
+			view.clear();
+			while (view.hasRemaining()) {
+				channel.write(view);
+			}
+		}
+		fos.close();
+	}
+
+	public void close() {
+		chunks = null;
+		if (file != null) {
+			try {
+				file.close();
+			} catch (IOException e) {
+				// only a temp file, deleted on exit anyway
+			}
+			// may fail while still mapped on some systems, then it's deleted on exit
+			tempFile.delete();
+		}
+	}
+
+}
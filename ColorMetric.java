@@ -0,0 +1,128 @@
+// Color difference formulas working on CIELAB values (L in [0,100]).
+// They return a value that grows with the difference, which is all we need
+// for finding the closest color, so square roots are skipped.
+// https://en.wikipedia.org/wiki/Color_difference
+public enum ColorMetric {
+
+	CIE76 {
+		public double difference(double[] lab1, double[] lab2) {
+			double dL = lab1[0] - lab2[0];
+			double da = lab1[1] - lab2[1];
+			double db = lab1[2] - lab2[2];
+			return dL * dL + da * da + db * db;
+		}
+	},
+
+	// graphic arts weights, lab1 is the reference color (the pixel), so the
+	// weights are the same for every palette color it's compared to
+	CIE94 {
+		public double difference(double[] lab1, double[] lab2) {
+			double dL = lab1[0] - lab2[0];
+			double da = lab1[1] - lab2[1];
+			double db = lab1[2] - lab2[2];
+			double c1 = Math.sqrt(lab1[1] * lab1[1] + lab1[2] * lab1[2]);
+			double c2 = Math.sqrt(lab2[1] * lab2[1] + lab2[2] * lab2[2]);
+			double dC = c1 - c2;
+			// can be slightly negative due to rounding
+			double dH2 = Math.max(da * da + db * db - dC * dC, 0);
+			double sC = 1 + 0.045 * c1;
+			double sH = 1 + 0.015 * c1;
+			return dL * dL + (dC / sC) * (dC / sC) + dH2 / (sH * sH);
+		}
+	},
+
+	// http://www2.ece.rochester.edu/~gsharma/ciede2000/ciede2000noteCRNA.pdf
+	CIEDE2000 {
+		public double difference(double[] lab1, double[] lab2) {
+			double l1 = lab1[0], a1 = lab1[1], b1 = lab1[2];
+			double l2 = lab2[0], a2 = lab2[1], b2 = lab2[2];
+
+			double cBar = (Math.sqrt(a1 * a1 + b1 * b1) + Math.sqrt(a2 * a2 + b2 * b2)) / 2;
+			double cBar7 = pow7(cBar);
+			double g = 0.5 * (1 - Math.sqrt(cBar7 / (cBar7 + POW_25_7)));
+			double a1p = (1 + g) * a1;
+			double a2p = (1 + g) * a2;
+			double c1p = Math.sqrt(a1p * a1p + b1 * b1);
+			double c2p = Math.sqrt(a2p * a2p + b2 * b2);
+			double h1p = hueAngle(b1, a1p);
+			double h2p = hueAngle(b2, a2p);
+
+			double dLp = l2 - l1;
+			double dCp = c2p - c1p;
+			double dhp = 0;
+			if (c1p * c2p != 0) {
+				dhp = h2p - h1p;
+				if (dhp > 180) {
+					dhp -= 360;
+				} else if (dhp < -180) {
+					dhp += 360;
+				}
+			}
+			double dHp = 2 * Math.sqrt(c1p * c2p) * Math.sin(Math.toRadians(dhp / 2));
+
+			double lBarp = (l1 + l2) / 2;
+			double cBarp = (c1p + c2p) / 2;
+			double hBarp = h1p + h2p;
+			if (c1p * c2p != 0) {
+				if (Math.abs(h1p - h2p) <= 180) {
+					hBarp = (h1p + h2p) / 2;
+				} else if (h1p + h2p < 360) {
+					hBarp = (h1p + h2p + 360) / 2;
+				} else {
+					hBarp = (h1p + h2p - 360) / 2;
+				}
+			}
+
+			// multiples of hBarp via angle addition, saves three cos calls
+			double cos1 = Math.cos(Math.toRadians(hBarp));
+			double sin1 = Math.sin(Math.toRadians(hBarp));
+			double cos2 = 2 * cos1 * cos1 - 1;
+			double sin2 = 2 * sin1 * cos1;
+			double cos3 = cos1 * cos2 - sin1 * sin2;
+			double sin3 = sin1 * cos2 + cos1 * sin2;
+			double cos4 = 2 * cos2 * cos2 - 1;
+			double sin4 = 2 * sin2 * cos2;
+			double t = 1 - 0.17 * (cos1 * COS_30 + sin1 * SIN_30) + 0.24 * cos2
+					+ 0.32 * (cos3 * COS_6 - sin3 * SIN_6) - 0.20 * (cos4 * COS_63 + sin4 * SIN_63);
+			double dTheta = 30 * Math.exp(-((hBarp - 275) / 25) * ((hBarp - 275) / 25));
+			double cBarp7 = pow7(cBarp);
+			double rC = 2 * Math.sqrt(cBarp7 / (cBarp7 + POW_25_7));
+			double lBarp50 = (lBarp - 50) * (lBarp - 50);
+			double sL = 1 + 0.015 * lBarp50 / Math.sqrt(20 + lBarp50);
+			double sC = 1 + 0.045 * cBarp;
+			double sH = 1 + 0.015 * cBarp * t;
+			double rT = -Math.sin(Math.toRadians(2 * dTheta)) * rC;
+
+			double termL = dLp / sL;
+			double termC = dCp / sC;
+			double termH = dHp / sH;
+			return termL * termL + termC * termC + termH * termH + rT * termC * termH;
+		}
+	};
+
+	private static final double POW_25_7 = Math.pow(25, 7);
+	private static final double COS_30 = Math.cos(Math.toRadians(30));
+	private static final double SIN_30 = Math.sin(Math.toRadians(30));
+	private static final double COS_6 = Math.cos(Math.toRadians(6));
+	private static final double SIN_6 = Math.sin(Math.toRadians(6));
+	private static final double COS_63 = Math.cos(Math.toRadians(63));
+	private static final double SIN_63 = Math.sin(Math.toRadians(63));
+
+	public abstract double difference(double[] lab1, double[] lab2);
+
+	// Math.pow is a lot slower for this
+	private static double pow7(double x) {
+		double x2 = x * x;
+		return x2 * x2 * x2 * x;
+	}
+
+	// hue angle in degrees, [0, 360[
+	private static double hueAngle(double b, double ap) {
+		if (b == 0 && ap == 0) {
+			return 0;
+		}
+		double h = Math.toDegrees(Math.atan2(b, ap));
+		return h < 0 ? h + 360 : h;
+	}
+
+}
@@ -0,0 +1,227 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Runs the stages after color reduction: terrain + encoding on CPU threads,
+// writing files on I/O threads. Sections are submitted as soon as their rows
+// are quantized, so terrain generation overlaps with color reduction and file
+// writes overlap with both. Sections with the same colors as an earlier one
+// are generated only once.
+public class ConversionPipeline {
+
+	private ThreadPoolExecutor terrainExecutor;
+	private ThreadPoolExecutor outputExecutor;
+	// columns of the sections being generated, see TerrainSquare. one pool
+	// for all sections, as large as the planned terrain threads, so sections
+	// generated in parallel don't each spread over every core.
+	private ForkJoinPool slicePool;
+
+	// block counts per section, sections listed in submission order
+	private ArrayList<String> sectionNames = new ArrayList<String>();
+	private ConcurrentHashMap<String, BillOfMaterials> sectionMaterials = new ConcurrentHashMap<String, BillOfMaterials>();
+
+	// first section with the given colors, by hash of the colors. sections
+	// with the same hash are only generated once.
+	private HashMap<ByteBuffer, String> uniqueSections = new HashMap<ByteBuffer, String>();
+	// file of every generated section
+	private HashMap<String, String> sectionFileNames = new HashMap<String, String>();
+	// {sectionName, fileName, originalSectionName} of the others
+	private ArrayList<String[]> duplicates = new ArrayList<String[]>();
+
+	// null writes every structure into its own file
+	private DatapackWriter datapack = null;
+
+	private String bestBlockState[];
+	private boolean[] bestBlockNeedsSupport;
+	private String supportBlockState;
+	private MapConverter.Mode mode;
+
+	// queuedSections sections may wait for a terrain thread before the
+	// submitting thread has to help, queuedWrites encoded files for an output
+	// thread. see MemoryScheduler.
+	public ConversionPipeline(int terrainThreads, int queuedSections, int outputThreads, int queuedWrites,
+			String bestBlockState[], boolean[] bestBlockNeedsSupport, String supportBlockState,
+			MapConverter.Mode mode) {
+		this.bestBlockState = bestBlockState;
+		this.bestBlockNeedsSupport = bestBlockNeedsSupport;
+		this.supportBlockState = supportBlockState;
+		this.mode = mode;
+		// bounded queues: when a stage falls behind, the thread submitting to
+		// it does the work itself instead of piling up more sections in memory
+		terrainExecutor = new ThreadPoolExecutor(terrainThreads, terrainThreads, 0, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queuedSections),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		outputExecutor = new ThreadPoolExecutor(outputThreads, outputThreads, 0, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queuedWrites), new ThreadPoolExecutor.CallerRunsPolicy());
+		slicePool = new ForkJoinPool(terrainThreads);
+	}
+
+	// fewer threads take effect as running sections finish. the slice pool
+	// keeps its size, memory is taken by the sections, not their columns.
+	public void setTerrainThreads(int threads) {
+		if (threads < terrainExecutor.getCorePoolSize()) {
+			terrainExecutor.setCorePoolSize(threads);
+			terrainExecutor.setMaximumPoolSize(threads);
+		} else {
+			terrainExecutor.setMaximumPoolSize(threads);
+			terrainExecutor.setCorePoolSize(threads);
+		}
+	}
+
+	public int getTerrainThreads() {
+		return terrainExecutor.getMaximumPoolSize();
+	}
+
+	// write structures into this datapack instead of files, named like the
+	// files would be. call before submitting sections.
+	public void setDatapack(DatapackWriter datapack) {
+		this.datapack = datapack;
+	}
+
+	// colorMatrix is the 128*128 section, indexed like the full color matrix.
+	// sections with the same colors as an earlier one are only linked to its
+	// file in finish().
+	public void submitSection(final int[][][] colorMatrix, final String sectionName, final String fileName) {
+		sectionNames.add(sectionName);
+		ByteBuffer key = hashColors(colorMatrix);
+		String originalName = uniqueSections.get(key);
+		if (originalName != null) {
+			duplicates.add(new String[] { sectionName, fileName, originalName });
+			System.out.print("Section " + sectionName + " is the same as " + originalName + "\n");
+			return;
+		}
+		uniqueSections.put(key, sectionName);
+		sectionFileNames.put(sectionName, fileName);
+
+		terrainExecutor.execute(new Runnable() {
+			public void run() {
+				try {
+					// generate terrain
+					TerrainSquare terrain = new TerrainSquare(colorMatrix, bestBlockState, bestBlockNeedsSupport,
+							supportBlockState, mode);
+					terrain.createTerrain(slicePool);
+
+					// count blocks before adding glass floor
+					BillOfMaterials materials = terrain.countBlocks();
+					sectionMaterials.put(sectionName, materials);
+					// one print per section so reports of parallel sections don't mix
+					System.out.print("Block counts for section " + sectionName + ":\n" + materials);
+
+					terrain.addGlassFloor();
+
+					// encode here, leave the file write to the output threads
+					final byte[] encodedStructure = terrain.encodeStructure();
+					outputExecutor.execute(new Runnable() {
+						public void run() {
+							if (datapack == null) {
+								StructureWriter.writeToFile(encodedStructure, fileName);
+								return;
+							}
+							try {
+								datapack.addStructure(new File(fileName).getName(), encodedStructure);
+							} catch (Throwable t) {
+								fail(t);
+							}
+						}
+					});
+				} catch (Throwable t) {
+					fail(t);
+				}
+			}
+		});
+	}
+
+	// wait for all submitted work to be written
+	public void finish() {
+		try {
+			// terrain tasks submit writes, so stop them first
+			terrainExecutor.shutdown();
+			terrainExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+			slicePool.shutdown();
+			outputExecutor.shutdown();
+			outputExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			fail(e);
+		}
+		// the originals are written now
+		for (String[] duplicate : duplicates) {
+			sectionMaterials.put(duplicate[0], sectionMaterials.get(duplicate[2]));
+			try {
+				if (datapack == null) {
+					linkOrCopy(sectionFileNames.get(duplicate[2]), duplicate[1]);
+				} else {
+					datapack.copyStructure(new File(sectionFileNames.get(duplicate[2])).getName(),
+							new File(duplicate[1]).getName());
+				}
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+	}
+
+	// number of sections that had the same colors as an earlier one
+	public int getDuplicateCount() {
+		return duplicates.size();
+	}
+
+	// hard link if the file system supports it
+	private static void linkOrCopy(String existingFileName, String fileName) throws IOException {
+		Path existing = Paths.get(existingFileName);
+		Path link = Paths.get(fileName);
+		Files.deleteIfExists(link);
+		try {
+			Files.createLink(link, existing);
+		} catch (IOException | UnsupportedOperationException e) {
+			Files.copy(existing, link);
+		}
+	}
+
+	// SHA-256 of the colors, wrapped so it can be used as a map key
+	private static ByteBuffer hashColors(int[][][] colorMatrix) {
+		byte[] colors = new byte[128 * 128];
+		for (int x = 0; x < 128; x++) {
+			for (int y = 0; y < 128; y++) {
+				colors[x * 128 + y] = (byte) (colorMatrix[x][y][0] * 3 + colorMatrix[x][y][1]);
+			}
+		}
+		try {
+			return ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(colors));
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform has SHA-256
+			throw new RuntimeException(e);
+		}
+	}
+
+	// call after finish()
+	public BillOfMaterials getTotalMaterials() {
+		BillOfMaterials total = new BillOfMaterials();
+		for (String sectionName : sectionNames) {
+			total.add(sectionMaterials.get(sectionName));
+		}
+		return total;
+	}
+
+	// writes <path>.csv and <path>.json, call after finish()
+	public void writeMaterialReports(String path) {
+		BillOfMaterials.writeReports(sectionNames, sectionMaterials, getTotalMaterials(), path);
+	}
+
+	private static void fail(Throwable t) {
+		System.out.println("Something went wrong:");
+		t.printStackTrace();
+		System.exit(1);
+	}
+
+}
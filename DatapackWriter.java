@@ -0,0 +1,103 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// Writes structures into one datapack zip as they come in, instead of one
+// file each: data/<namespace>/structures/<name> plus pack.mcmeta.
+// Structures are gzipped already, so entries are stored uncompressed.
+public class DatapackWriter {
+
+	// datapack format of 1.16, matching the DataVersion of the structures
+	private static final int PACK_FORMAT = 6;
+
+	private String namespace;
+	private String fileName;
+	private CountingOutputStream counter;
+	private ZipOutputStream zip;
+	// {end position, size} of every structure entry's data in the zip
+	private HashMap<String, long[]> entryData = new HashMap<String, long[]>();
+
+	public DatapackWriter(String fileName, String namespace) throws IOException {
+		this.fileName = fileName;
+		this.namespace = namespace;
+		counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(new File(fileName)), 1 << 16));
+		zip = new ZipOutputStream(counter);
+		String packMeta = "{\n\t\"pack\": {\n\t\t\"pack_format\": " + PACK_FORMAT
+				+ ",\n\t\t\"description\": \"Map art made with MapConverter\"\n\t}\n}\n";
+		putStoredEntry("pack.mcmeta", packMeta.getBytes(StandardCharsets.UTF_8));
+	}
+
+	// name like "section.1.2.nbt", used in game as <namespace>:section.1.2
+	public synchronized void addStructure(String name, byte[] encodedStructure) throws IOException {
+		putStoredEntry(getEntryName(name), encodedStructure);
+		entryData.put(name, new long[] { counter.getCount(), encodedStructure.length });
+	}
+
+	// adds a structure with the same contents as one added before, read back
+	// from the zip so not every structure has to be kept in memory
+	public synchronized void copyStructure(String existingName, String name) throws IOException {
+		long[] data = entryData.get(existingName);
+		zip.flush();
+		byte[] encodedStructure = new byte[(int) data[1]];
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		file.seek(data[0] - data[1]);
+		file.readFully(encodedStructure);
+		file.close();
+		addStructure(name, encodedStructure);
+	}
+
+	public synchronized void close() throws IOException {
+		zip.close();
+	}
+
+	private String getEntryName(String name) {
+		return "data/" + namespace + "/structures/" + name;
+	}
+
+	// stored entries need size and checksum up front, then no data descriptor
+	// follows the data, so it ends where the stream is after closeEntry
+	private void putStoredEntry(String entryName, byte[] data) throws IOException {
+		ZipEntry entry = new ZipEntry(entryName);
+		entry.setMethod(ZipEntry.STORED);
+		entry.setSize(data.length);
+		entry.setCompressedSize(data.length);
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		entry.setCrc(crc.getValue());
+		zip.putNextEntry(entry);
+		zip.write(data);
+		zip.closeEntry();
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+		private long count = 0;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		long getCount() {
+			return count;
+		}
+	}
+
+}
@@ -0,0 +1,66 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Which structure file to use for every section in every frame of an
+// animation. Only changed sections get a new file, unchanged ones keep
+// pointing to the file of an earlier frame.
+public class FrameManifest {
+
+	// per frame: section name -> structure file, relative to the output folder
+	private ArrayList<TreeMap<String, String>> frameFiles = new ArrayList<TreeMap<String, String>>();
+	// per frame: sections with a new file
+	private ArrayList<ArrayList<String>> changedSections = new ArrayList<ArrayList<String>>();
+
+	public void startFrame() {
+		TreeMap<String, String> files = new TreeMap<String, String>();
+		if (!frameFiles.isEmpty()) {
+			files.putAll(frameFiles.get(frameFiles.size() - 1));
+		}
+		frameFiles.add(files);
+		changedSections.add(new ArrayList<String>());
+	}
+
+	public void setChanged(String sectionName, String fileName) {
+		frameFiles.get(frameFiles.size() - 1).put(sectionName, fileName);
+		changedSections.get(changedSections.size() - 1).add(sectionName);
+	}
+
+	public int getChangedCount(int frame) {
+		return changedSections.get(frame).size();
+	}
+
+	public void writeToFile(String fileName) {
+		try {
+			Writer json = new FileWriter(new File(fileName));
+			json.write("{\n\t\"frames\": [");
+			for (int frame = 0; frame < frameFiles.size(); frame++) {
+				json.write(frame == 0 ? "\n" : ",\n");
+				json.write("\t\t{\n\t\t\t\"frame\": " + frame + ",\n\t\t\t\"changed\": [");
+				ArrayList<String> changed = changedSections.get(frame);
+				for (int k = 0; k < changed.size(); k++) {
+					json.write((k == 0 ? "" : ", ") + "\"" + changed.get(k) + "\"");
+				}
+				json.write("],\n\t\t\t\"sections\": {");
+				boolean first = true;
+				for (Map.Entry<String, String> entry : frameFiles.get(frame).entrySet()) {
+					json.write(first ? "\n" : ",\n");
+					json.write("\t\t\t\t\"" + entry.getKey() + "\": \"" + entry.getValue() + "\"");
+					first = false;
+				}
+				json.write("\n\t\t\t}\n\t\t}");
+			}
+			json.write("\n\t]\n}\n");
+			json.close();
+		} catch (IOException e) {
+			System.out.println("Something went wrong:");
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+}
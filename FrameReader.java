@@ -0,0 +1,216 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+// Reads the frames of an animation, either all images of a multi-image file
+// like an animated GIF or all images in a folder, sorted by their numbers.
+// Frames are returned in order, as complete pictures (GIF frames only
+// contain the changed part and have to be drawn over the previous ones).
+public class FrameReader {
+
+	private static final String GIF_IMAGE_FORMAT = "javax_imageio_gif_image_1.0";
+	private static final String GIF_STREAM_FORMAT = "javax_imageio_gif_stream_1.0";
+
+	// folder input
+	private File[] files = null;
+	// multi-image file input
+	private ImageReader reader = null;
+
+	private int frameCount;
+	private int nextFrame = 0;
+	private int width;
+	private int height;
+
+	// animation state for multi-image files, in ARGB
+	private BufferedImage canvas = null;
+
+	public static FrameReader open(String path) throws IOException {
+		FrameReader frameReader = new FrameReader();
+		File file = new File(path);
+		if (file.isDirectory()) {
+			frameReader.openFolder(file);
+		} else {
+			frameReader.openMultiImageFile(file);
+		}
+		return frameReader;
+	}
+
+	private void openFolder(File folder) throws IOException {
+		ArrayList<File> images = new ArrayList<File>();
+		for (File file : folder.listFiles()) {
+			String name = file.getName().toLowerCase();
+			if (file.isFile() && (name.endsWith(".png") || name.endsWith(".gif") || name.endsWith(".jpg")
+					|| name.endsWith(".jpeg") || name.endsWith(".bmp"))) {
+				images.add(file);
+			}
+		}
+		files = images.toArray(new File[0]);
+		// shorter names first, so frame9 comes before frame10
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File file1, File file2) {
+				String name1 = file1.getName();
+				String name2 = file2.getName();
+				if (name1.length() != name2.length()) {
+					return name1.length() - name2.length();
+				}
+				return name1.compareTo(name2);
+			}
+		});
+		frameCount = files.length;
+		if (frameCount == 0) {
+			throw new IOException("No images in " + folder);
+		}
+		BufferedImage first = ImageIO.read(files[0]);
+		if (first == null) {
+			throw new IOException("Can't read " + files[0]);
+		}
+		width = first.getWidth();
+		height = first.getHeight();
+	}
+
+	private void openMultiImageFile(File file) throws IOException {
+		ImageInputStream iis = ImageIO.createImageInputStream(file);
+		Iterator<ImageReader> readers = iis == null ? null : ImageIO.getImageReaders(iis);
+		if (readers == null || !readers.hasNext()) {
+			throw new IOException("Can't read " + file);
+		}
+		reader = readers.next();
+		reader.setInput(iis, false, false);
+		frameCount = reader.getNumImages(true);
+		width = reader.getWidth(0);
+		height = reader.getHeight(0);
+		// GIFs may have frames smaller than the animation
+		Node screen = getChild(getTree(reader.getStreamMetadata(), GIF_STREAM_FORMAT), "LogicalScreenDescriptor");
+		if (screen != null) {
+			width = Math.max(width, getIntAttribute(screen, "logicalScreenWidth", 0));
+			height = Math.max(height, getIntAttribute(screen, "logicalScreenHeight", 0));
+		}
+		canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+	}
+
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	// returns null after the last frame
+	public BufferedImage nextFrame() throws IOException {
+		if (nextFrame >= frameCount) {
+			return null;
+		}
+		BufferedImage frame;
+		if (files != null) {
+			frame = ImageIO.read(files[nextFrame]);
+			if (frame == null) {
+				throw new IOException("Can't read " + files[nextFrame]);
+			}
+			if (frame.getWidth() != width || frame.getHeight() != height) {
+				throw new IOException("All frames need to have the same size, " + files[nextFrame] + " doesn't.");
+			}
+		} else {
+			frame = readAnimationFrame(nextFrame);
+		}
+		nextFrame++;
+		return frame;
+	}
+
+	private BufferedImage readAnimationFrame(int index) throws IOException {
+		BufferedImage image = reader.read(index);
+		Node imageTree = getTree(reader.getImageMetadata(index), GIF_IMAGE_FORMAT);
+		Node descriptor = getChild(imageTree, "ImageDescriptor");
+		Node control = getChild(imageTree, "GraphicControlExtension");
+		int left = getIntAttribute(descriptor, "imageLeftPosition", 0);
+		int top = getIntAttribute(descriptor, "imageTopPosition", 0);
+		String disposal = control == null ? "none" : getAttribute(control, "disposalMethod");
+
+		BufferedImage previous = null;
+		if ("restoreToPrevious".equals(disposal)) {
+			previous = copy(canvas);
+		}
+		Graphics2D g = canvas.createGraphics();
+		g.drawImage(image, left, top, null);
+		g.dispose();
+		BufferedImage frame = copy(canvas);
+
+		// prepare canvas for the next frame
+		if ("restoreToBackgroundColor".equals(disposal)) {
+			Graphics2D clear = canvas.createGraphics();
+			clear.setBackground(new Color(0, 0, 0, 0));
+			clear.clearRect(left, top, image.getWidth(), image.getHeight());
+			clear.dispose();
+		} else if (previous != null) {
+			canvas = previous;
+		}
+		return frame;
+	}
+
+	public void close() {
+		if (reader != null) {
+			reader.dispose();
+		}
+	}
+
+	private static BufferedImage copy(BufferedImage image) {
+		BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), image.getType());
+		copy.getGraphics().drawImage(image, 0, 0, null);
+		return copy;
+	}
+
+	// null if there's no metadata in this format, i.e. it's not a GIF
+	private static Node getTree(IIOMetadata metadata, String format) {
+		if (metadata == null) {
+			return null;
+		}
+		for (String name : metadata.getMetadataFormatNames()) {
+			if (name.equals(format)) {
+				return metadata.getAsTree(format);
+			}
+		}
+		return null;
+	}
+
+	private static Node getChild(Node node, String name) {
+		if (node == null) {
+			return null;
+		}
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeName().equals(name)) {
+				return child;
+			}
+		}
+		return null;
+	}
+
+	private static String getAttribute(Node node, String name) {
+		NamedNodeMap attributes = node.getAttributes();
+		Node attribute = attributes == null ? null : attributes.getNamedItem(name);
+		return attribute == null ? null : attribute.getNodeValue();
+	}
+
+	private static int getIntAttribute(Node node, String name, int defaultValue) {
+		String value = node == null ? null : getAttribute(node, name);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+
+}
@@ -0,0 +1,498 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataFormatImpl;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+// Resizes images with a separable filter, first along rows, then along
+// columns. The source is processed in strips of rows: every strip is resized
+// along its rows as soon as it's decoded and target rows are finished as soon
+// as all their source rows are, so only about a strip of the full resolution
+// image is in memory at a time. Only the part of the target that's asked for
+// is computed. Rows of a strip and rows of the output are spread across
+// threads.
+public class ImageResizer {
+
+	public static enum Filter {
+		LANCZOS, AREA
+	}
+
+	// pixels per strip of source rows
+	private static final int STRIP_PIXELS = 1 << 24;
+	// Lanczos kernel size
+	private static final int LANCZOS_LOBES = 3;
+
+	private int sourceWidth;
+	private int sourceHeight;
+	private int targetWidth;
+	private int targetHeight;
+	private int threads;
+	private int stripRows;
+
+	// contributions of source pixels to every target column / row: first
+	// source index and the weights starting there
+	private int[] columnStarts;
+	private float[][] columnWeights;
+	private int[] rowStarts;
+	private float[][] rowWeights;
+
+	public ImageResizer(int sourceWidth, int sourceHeight, int targetWidth, int targetHeight, Filter filter,
+			int threads) {
+		this.sourceWidth = sourceWidth;
+		this.sourceHeight = sourceHeight;
+		this.targetWidth = targetWidth;
+		this.targetHeight = targetHeight;
+		this.threads = threads;
+		stripRows = Math.max(1, Math.min(sourceHeight, STRIP_PIXELS / sourceWidth));
+		columnStarts = new int[targetWidth];
+		columnWeights = new float[targetWidth][];
+		computeContributions(sourceWidth, targetWidth, filter, columnStarts, columnWeights);
+		rowStarts = new int[targetHeight];
+		rowWeights = new float[targetHeight][];
+		computeContributions(sourceHeight, targetHeight, filter, rowStarts, rowWeights);
+	}
+
+	// heap needed besides the resized image for a region regionWidth pixels
+	// wide: a strip decoded and as RGB, the rows resized along their rows
+	// that target rows still need, and the whole image if reader can't
+	// decode strip by strip (see needsWholeSource)
+	public long getWorkingBytes(int regionWidth, boolean wholeSource) {
+		int kernelRows = 0;
+		for (float[] weights : rowWeights) {
+			kernelRows = Math.max(kernelRows, weights.length);
+		}
+		long bytes = (long) stripRows * sourceWidth * 4 * 2 + (long) (stripRows + kernelRows) * regionWidth * 3 * 4;
+		if (wholeSource) {
+			bytes += (long) sourceWidth * sourceHeight * 4;
+		}
+		return bytes;
+	}
+
+	// whether resize(reader, region) has to decode the whole image first.
+	// Formats that can decode regions cheaply (e.g. tiled TIFF) are read strip
+	// by strip, PNG and JPEG are decoded once from the top and every strip is
+	// taken as soon as its rows are there. Interlaced PNG and progressive
+	// JPEG only have their final rows at the end.
+	public static boolean needsWholeSource(ImageReader reader) throws IOException {
+		return !reader.isRandomAccessEasy(0) && !isDecodedInOrder(reader);
+	}
+
+	private static boolean isDecodedInOrder(ImageReader reader) throws IOException {
+		String format = reader.getFormatName().toLowerCase();
+		if (!format.equals("png") && !format.equals("jpeg")) {
+			return false;
+		}
+		IIOMetadata metadata = reader.getImageMetadata(0);
+		if (metadata == null || !metadata.isStandardMetadataFormatSupported()) {
+			return false;
+		}
+		Element scans = findElement(metadata.getAsTree(IIOMetadataFormatImpl.standardMetadataFormatName),
+				"NumProgressiveScans");
+		if (scans == null || !scans.getAttribute("value").equals("1")) {
+			return false;
+		}
+		// RowRing has to find the row of every sample
+		int scanlineStride = getScanlineStride(reader.getImageTypes(0).next().getSampleModel());
+		return scanlineStride > 0 && (long) scanlineStride * reader.getHeight(0) <= Integer.MAX_VALUE;
+	}
+
+	private static Element findElement(Node node, String name) {
+		if (node.getNodeName().equals(name)) {
+			return (Element) node;
+		}
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+			Element element = findElement(child, name);
+			if (element != null) {
+				return element;
+			}
+		}
+		return null;
+	}
+
+	// data elements per row, 0 if not stored row by row
+	private static int getScanlineStride(SampleModel sampleModel) {
+		if (sampleModel instanceof ComponentSampleModel) {
+			return ((ComponentSampleModel) sampleModel).getScanlineStride();
+		}
+		if (sampleModel instanceof MultiPixelPackedSampleModel) {
+			return ((MultiPixelPackedSampleModel) sampleModel).getScanlineStride();
+		}
+		if (sampleModel instanceof SinglePixelPackedSampleModel) {
+			return ((SinglePixelPackedSampleModel) sampleModel).getScanlineStride();
+		}
+		return 0;
+	}
+
+	// resizes the part of the image in region (in target coordinates)
+	public BufferedImage resize(final ImageReader reader, Rectangle region) throws IOException {
+		Resize resize = new Resize(region);
+		try {
+			if (reader.isRandomAccessEasy(0)) {
+				readStrips(new StripSource() {
+					BufferedImage readRows(int y, int rows) throws IOException {
+						ImageReadParam param = reader.getDefaultReadParam();
+						param.setSourceRegion(new Rectangle(0, y, sourceWidth, rows));
+						return reader.read(0, param);
+					}
+				}, resize);
+			} else if (isDecodedInOrder(reader)) {
+				decodeStrips(reader, resize);
+			} else {
+				final BufferedImage source = reader.read(0);
+				readStrips(new StripSource() {
+					BufferedImage readRows(int y, int rows) {
+						return source.getSubimage(0, y, sourceWidth, rows);
+					}
+				}, resize);
+			}
+		} finally {
+			resize.finish();
+		}
+		return resize.target;
+	}
+
+	public BufferedImage resize(final BufferedImage source) throws IOException {
+		Resize resize = new Resize(new Rectangle(targetWidth, targetHeight));
+		try {
+			readStrips(new StripSource() {
+				BufferedImage readRows(int y, int rows) {
+					return source.getSubimage(0, y, sourceWidth, rows);
+				}
+			}, resize);
+		} finally {
+			resize.finish();
+		}
+		return resize.target;
+	}
+
+	private abstract class StripSource {
+		abstract BufferedImage readRows(int y, int rows) throws IOException;
+	}
+
+	private void readStrips(StripSource source, Resize resize) throws IOException {
+		for (int stripStart = resize.firstSourceRow; stripStart < resize.endSourceRow; stripStart += stripRows) {
+			int rows = Math.min(stripRows, resize.endSourceRow - stripStart);
+			resize.addStrip(source.readRows(stripStart, rows), stripStart);
+		}
+	}
+
+	// decodes the image once, into a destination that only keeps the rows of
+	// the current strip (see RowRing). The reader reports every row it
+	// finished, a full strip is resized before the reader goes on.
+	private void decodeStrips(final ImageReader reader, final Resize resize) throws IOException {
+		ImageTypeSpecifier type = reader.getImageTypes(0).next();
+		final BufferedImage ring = type.createBufferedImage(sourceWidth, stripRows);
+		SampleModel sampleModel = type.getSampleModel(sourceWidth, sourceHeight);
+		int scanlineStride = getScanlineStride(sampleModel);
+		DataBuffer rowRing = new RowRing(ring.getRaster().getDataBuffer(), scanlineStride * stripRows,
+				scanlineStride * sourceHeight);
+		BufferedImage destination = new BufferedImage(type.getColorModel(),
+				Raster.createWritableRaster(sampleModel, rowRing, null), type.getColorModel().isAlphaPremultiplied(),
+				null);
+
+		final IOException[] failure = new IOException[1];
+		IIOReadUpdateListener listener = new IIOReadUpdateListener() {
+			public void imageUpdate(ImageReader source, BufferedImage image, int minX, int minY, int width,
+					int height, int periodX, int periodY, int[] bands) {
+				// rows come in order, see isDecodedInOrder. strips start at
+				// multiples of stripRows, so a strip starts at row 0 of ring
+				int lastRow = minY + height - 1;
+				int stripStart = lastRow / stripRows * stripRows;
+				if (failure[0] != null || (lastRow + 1 < stripStart + stripRows && lastRow < sourceHeight - 1)) {
+					return;
+				}
+				try {
+					resize.addStrip(ring.getSubimage(0, 0, sourceWidth, lastRow + 1 - stripStart), stripStart);
+				} catch (IOException e) {
+					failure[0] = e;
+				}
+				// rows below the region aren't needed
+				if (failure[0] != null || resize.isDone()) {
+					reader.abort();
+				}
+			}
+
+			public void passStarted(ImageReader source, BufferedImage image, int pass, int minPass, int maxPass,
+					int minX, int minY, int periodX, int periodY, int[] bands) {
+			}
+
+			public void passComplete(ImageReader source, BufferedImage image) {
+			}
+
+			public void thumbnailPassStarted(ImageReader source, BufferedImage thumbnail, int pass, int minPass,
+					int maxPass, int minX, int minY, int periodX, int periodY, int[] bands) {
+			}
+
+			public void thumbnailUpdate(ImageReader source, BufferedImage thumbnail, int minX, int minY, int width,
+					int height, int periodX, int periodY, int[] bands) {
+			}
+
+			public void thumbnailPassComplete(ImageReader source, BufferedImage thumbnail) {
+			}
+		};
+		ImageReadParam param = reader.getDefaultReadParam();
+		param.setDestination(destination);
+		reader.addIIOReadUpdateListener(listener);
+		try {
+			reader.read(0, param);
+		} finally {
+			reader.removeIIOReadUpdateListener(listener);
+		}
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+	}
+
+	// data of an image with all rows, that only stores as many as ring has:
+	// row y is kept in row y % (ring rows) of ring
+	private static class RowRing extends DataBuffer {
+
+		private DataBuffer ring;
+		private int ringSize;
+
+		RowRing(DataBuffer ring, int ringSize, int size) {
+			super(ring.getDataType(), size, ring.getNumBanks());
+			this.ring = ring;
+			this.ringSize = ringSize;
+		}
+
+		public int getElem(int bank, int i) {
+			return ring.getElem(bank, i % ringSize);
+		}
+
+		public void setElem(int bank, int i, int value) {
+			ring.setElem(bank, i % ringSize, value);
+		}
+	}
+
+	// target pixels in region and what's needed to compute them
+	private class Resize {
+
+		private Rectangle region;
+		private BufferedImage target;
+		// source rows [firstSourceRow, endSourceRow[ are needed for region
+		private int firstSourceRow;
+		private int endSourceRow;
+		// source rows resized along the rows for the columns of region, {r,
+		// g, b} per pixel. Rows no target row needs anymore are dropped.
+		private float[][] resizedRows;
+		private int nextTargetRow;
+		private ExecutorService executor;
+
+		Resize(Rectangle region) {
+			this.region = region;
+			target = new BufferedImage(region.width, region.height, BufferedImage.TYPE_INT_RGB);
+			firstSourceRow = rowStarts[region.y];
+			endSourceRow = firstSourceRow;
+			for (int y = region.y; y < region.y + region.height; y++) {
+				endSourceRow = Math.max(endSourceRow, rowStarts[y] + rowWeights[y].length);
+			}
+			resizedRows = new float[sourceHeight][];
+			nextTargetRow = region.y;
+			executor = Executors.newFixedThreadPool(threads);
+		}
+
+		boolean isDone() {
+			return nextTargetRow == region.y + region.height;
+		}
+
+		void finish() {
+			executor.shutdown();
+		}
+
+		// source rows [stripStart, stripStart + rows.getHeight()[
+		void addStrip(BufferedImage rows, int stripStart) throws IOException {
+			int stripEnd = stripStart + rows.getHeight();
+			final int from = Math.max(stripStart, firstSourceRow);
+			int to = Math.min(stripEnd, endSourceRow);
+			if (from < to) {
+				// ensure proper image type, transparency on black like loadImage
+				final BufferedImage strip = new BufferedImage(sourceWidth, to - from, BufferedImage.TYPE_INT_RGB);
+				strip.getGraphics().drawImage(rows.getSubimage(0, from - stripStart, sourceWidth, to - from), 0, 0,
+						null);
+
+				// horizontal pass over this strip
+				runInBands(executor, to - from, new Band() {
+					void run(int bandFrom, int bandTo) {
+						int[] rgbRow = new int[sourceWidth];
+						for (int y = bandFrom; y < bandTo; y++) {
+							strip.getRGB(0, y, sourceWidth, 1, rgbRow, 0, sourceWidth);
+							resizedRows[from + y] = resizeRow(rgbRow, region);
+						}
+					}
+				});
+			}
+
+			// vertical pass for all target rows whose source rows are done
+			int readyTargetRows = nextTargetRow;
+			while (readyTargetRows < region.y + region.height
+					&& rowStarts[readyTargetRows] + rowWeights[readyTargetRows].length <= stripEnd) {
+				readyTargetRows++;
+			}
+			final int firstTargetRow = nextTargetRow;
+			runInBands(executor, readyTargetRows - nextTargetRow, new Band() {
+				void run(int bandFrom, int bandTo) {
+					int[] rgbRow = new int[region.width];
+					for (int y = firstTargetRow + bandFrom; y < firstTargetRow + bandTo; y++) {
+						resizeColumns(resizedRows, y, rgbRow);
+						target.setRGB(0, y - region.y, region.width, 1, rgbRow, 0, region.width);
+					}
+				}
+			});
+			nextTargetRow = readyTargetRows;
+
+			// forget source rows before the first one still needed
+			int firstNeededRow = isDone() ? sourceHeight : rowStarts[nextTargetRow];
+			for (int y = firstSourceRow; y < Math.min(firstNeededRow, stripEnd); y++) {
+				resizedRows[y] = null;
+			}
+		}
+	}
+
+	// resizes a source row to the columns of region
+	private float[] resizeRow(int[] rgbRow, Rectangle region) {
+		float[] resized = new float[region.width * 3];
+		for (int x = 0; x < region.width; x++) {
+			float r = 0, g = 0, b = 0;
+			float[] weights = columnWeights[region.x + x];
+			int start = columnStarts[region.x + x];
+			for (int k = 0; k < weights.length; k++) {
+				int rgb = rgbRow[start + k];
+				r += weights[k] * ((rgb >> 16) & 0xFF);
+				g += weights[k] * ((rgb >> 8) & 0xFF);
+				b += weights[k] * (rgb & 0xFF);
+			}
+			resized[x * 3] = r;
+			resized[x * 3 + 1] = g;
+			resized[x * 3 + 2] = b;
+		}
+		return resized;
+	}
+
+	private void resizeColumns(float[][] resizedRows, int y, int[] rgbRow) {
+		float[] weights = rowWeights[y];
+		int start = rowStarts[y];
+		for (int x = 0; x < rgbRow.length; x++) {
+			float r = 0, g = 0, b = 0;
+			for (int k = 0; k < weights.length; k++) {
+				float[] row = resizedRows[start + k];
+				r += weights[k] * row[x * 3];
+				g += weights[k] * row[x * 3 + 1];
+				b += weights[k] * row[x * 3 + 2];
+			}
+			rgbRow[x] = (toChannel(r) << 16) | (toChannel(g) << 8) | toChannel(b);
+		}
+	}
+
+	// Lanczos overshoots, so clamp
+	private static int toChannel(float value) {
+		return Math.min(Math.max(Math.round(value), 0), 255);
+	}
+
+	private static void computeContributions(int sourceSize, int targetSize, Filter filter, int[] starts,
+			float[][] weights) {
+		double scale = (double) sourceSize / targetSize;
+		for (int i = 0; i < targetSize; i++) {
+			int first;
+			int last;
+			double[] rawWeights;
+			if (filter == Filter.AREA) {
+				// overlap of the target pixel with every source pixel
+				double from = i * scale;
+				double to = (i + 1) * scale;
+				first = (int) Math.floor(from);
+				last = Math.min((int) Math.ceil(to) - 1, sourceSize - 1);
+				rawWeights = new double[last - first + 1];
+				for (int k = first; k <= last; k++) {
+					rawWeights[k - first] = Math.min(to, k + 1) - Math.max(from, k);
+				}
+			} else {
+				// when shrinking, stretch the kernel to cover all source pixels
+				double stretch = Math.max(scale, 1);
+				double support = LANCZOS_LOBES * stretch;
+				double center = (i + 0.5) * scale - 0.5;
+				int from = (int) Math.floor(center - support);
+				int to = (int) Math.ceil(center + support);
+				// clamp at the edges by moving weights to the border pixel
+				first = Math.max(from, 0);
+				last = Math.min(to, sourceSize - 1);
+				rawWeights = new double[last - first + 1];
+				for (int k = from; k <= to; k++) {
+					int clamped = Math.min(Math.max(k, first), last);
+					rawWeights[clamped - first] += lanczos((k - center) / stretch);
+				}
+			}
+			double sum = 0;
+			for (double weight : rawWeights) {
+				sum += weight;
+			}
+			starts[i] = first;
+			weights[i] = new float[rawWeights.length];
+			for (int k = 0; k < rawWeights.length; k++) {
+				weights[i][k] = (float) (rawWeights[k] / sum);
+			}
+		}
+	}
+
+	private static double lanczos(double x) {
+		if (x == 0) {
+			return 1;
+		}
+		if (Math.abs(x) >= LANCZOS_LOBES) {
+			return 0;
+		}
+		double px = Math.PI * x;
+		return LANCZOS_LOBES * Math.sin(px) * Math.sin(px / LANCZOS_LOBES) / (px * px);
+	}
+
+	private abstract class Band {
+		// rows [from, to[
+		abstract void run(int from, int to);
+	}
+
+	// splits rows [0, rows[ into one band per thread and waits for all
+	private void runInBands(ExecutorService executor, int rows, final Band band) throws IOException {
+		ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+		int bandRows = (rows + threads - 1) / threads;
+		for (int from = 0; from < rows; from += bandRows) {
+			final int bandFrom = from;
+			final int bandTo = Math.min(from + bandRows, rows);
+			futures.add(executor.submit(new Callable<Object>() {
+				public Object call() {
+					band.run(bandFrom, bandTo);
+					return null;
+				}
+			}));
+		}
+		try {
+			for (Future<Object> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+}
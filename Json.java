@@ -0,0 +1,163 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// The little JSON this program writes and reads back (shard manifests and
+// bill of materials): objects, arrays, strings and integers. Objects keep
+// the order of their keys. Writers quote strings with quote(), so whatever
+// they write can be read back, however it's indented.
+public class Json {
+
+	private String text;
+	private int position = 0;
+
+	private Json(String text) {
+		this.text = text;
+	}
+
+	public static String quote(String s) {
+		return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	// a LinkedHashMap for objects, ArrayList for arrays, String or Long
+	public static Object read(File file) throws IOException {
+		Json json = new Json(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+		Object value = json.readValue();
+		json.skipWhitespace();
+		if (json.position < json.text.length()) {
+			throw json.error("end of file");
+		}
+		return value;
+	}
+
+	// the object with key in object, an IOException if it's not one
+	public static Map<?, ?> getObject(Object object, String key) throws IOException {
+		Object value = object instanceof Map ? ((Map<?, ?>) object).get(key) : null;
+		if (!(value instanceof Map)) {
+			throw new IOException("No object \"" + key + "\"");
+		}
+		return (Map<?, ?>) value;
+	}
+
+	public static long getNumber(Object object, String key) throws IOException {
+		Object value = object instanceof Map ? ((Map<?, ?>) object).get(key) : null;
+		if (!(value instanceof Long)) {
+			throw new IOException("No number \"" + key + "\"");
+		}
+		return (Long) value;
+	}
+
+	// null if there's no such string
+	public static String getString(Object object, String key) {
+		Object value = object instanceof Map ? ((Map<?, ?>) object).get(key) : null;
+		return value instanceof String ? (String) value : null;
+	}
+
+	private Object readValue() throws IOException {
+		skipWhitespace();
+		if (position >= text.length()) {
+			throw error("a value");
+		}
+		char c = text.charAt(position);
+		if (c == '{') {
+			position++;
+			LinkedHashMap<String, Object> object = new LinkedHashMap<String, Object>();
+			if (!skip('}')) {
+				do {
+					skipWhitespace();
+					if (position >= text.length() || text.charAt(position) != '"') {
+						throw error("a key");
+					}
+					String key = readString();
+					if (!skip(':')) {
+						throw error("':'");
+					}
+					object.put(key, readValue());
+				} while (skip(','));
+				if (!skip('}')) {
+					throw error("',' or '}'");
+				}
+			}
+			return object;
+		} else if (c == '[') {
+			position++;
+			ArrayList<Object> array = new ArrayList<Object>();
+			if (!skip(']')) {
+				do {
+					array.add(readValue());
+				} while (skip(','));
+				if (!skip(']')) {
+					throw error("',' or ']'");
+				}
+			}
+			return array;
+		} else if (c == '"') {
+			return readString();
+		} else if (c == '-' || (c >= '0' && c <= '9')) {
+			int start = position++;
+			while (position < text.length() && Character.isDigit(text.charAt(position))) {
+				position++;
+			}
+			try {
+				return Long.parseLong(text.substring(start, position));
+			} catch (NumberFormatException e) {
+				throw error("an integer");
+			}
+		}
+		throw error("a value");
+	}
+
+	// at the opening quote
+	private String readString() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		position++;
+		while (position < text.length()) {
+			char c = text.charAt(position++);
+			if (c == '"') {
+				return sb.toString();
+			}
+			if (c == '\\' && position < text.length()) {
+				c = text.charAt(position++);
+				if (c == 'n') {
+					c = '\n';
+				} else if (c == 't') {
+					c = '\t';
+				} else if (c == 'u' && position + 4 <= text.length()) {
+					try {
+						c = (char) Integer.parseInt(text.substring(position, position + 4), 16);
+					} catch (NumberFormatException e) {
+						throw error("4 hex digits");
+					}
+					position += 4;
+				}
+			}
+			sb.append(c);
+		}
+		throw error("'\"'");
+	}
+
+	// true if c is next, after whitespace, and skips it
+	private boolean skip(char c) {
+		skipWhitespace();
+		if (position < text.length() && text.charAt(position) == c) {
+			position++;
+			return true;
+		}
+		return false;
+	}
+
+	private void skipWhitespace() {
+		while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+			position++;
+		}
+	}
+
+	private IOException error(String expected) {
+		return new IOException("Expected " + expected + " at character " + position);
+	}
+
+}
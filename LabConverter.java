@@ -0,0 +1,72 @@
+// sRGB to CIELAB (D50) conversion, results go into arrays given by the caller
+// so nothing is allocated per color.
+// https://en.wikipedia.org/wiki/CIELAB_color_space
+// http://www.brucelindbloom.com/index.html?Eqn_RGB_to_XYZ.html
+// http://www.brucelindbloom.com/index.html?Eqn_XYZ_to_Lab.html
+// https://de.wikipedia.org/wiki/Lab-Farbraum#Umrechnung_von_XYZ_zu_Lab
+// https://observablehq.com/@mbostock/lab-and-rgb
+public class LabConverter {
+
+	// linear value of every sRGB channel value, 0-255
+	private static final double[] LINEAR = new double[256];
+	static {
+		for (int i = 0; i < 256; i++) {
+			double V = i / 255.0;
+			if (V <= 0.04045) {
+				LINEAR[i] = V / 12.92;
+			} else {
+				LINEAR[i] = Math.pow((V + 0.055) / 1.055, 2.4);
+			}
+		}
+	}
+
+	private static final double EPSILON = 216.0 / 24389.0;
+	private static final double KAPPA = 24389.0 / 27.0;
+
+	// lab = {L, a, b}, moved into [0,255] and truncated like the palette
+	// search expects. Math.cbrt differs from Math.pow(x, 1/3) in the last
+	// bits only, which was checked to give the same integers for all 2^24
+	// colors.
+	public static void toLab(int rgb, int[] lab) {
+		double r = LINEAR[(rgb >> 16) & 0xFF];
+		double g = LINEAR[(rgb >> 8) & 0xFF];
+		double b = LINEAR[rgb & 0xFF];
+		double fx = f((0.4360747 * r + 0.3850649 * g + 0.1430804 * b) / 0.96422);
+		double fy = f((0.2225045 * r + 0.7168786 * g + 0.0606169 * b) / 1.0);
+		double fz = f((0.0139322 * r + 0.0971045 * g + 0.7141733 * b) / 0.82521);
+		lab[0] = (int) (2.55 * (116 * fy - 16));
+		lab[1] = 128 + (int) (500 * (fx - fy));
+		lab[2] = 128 + (int) (200 * (fy - fz));
+	}
+
+	// lab = {L, a, b}, L in [0,100], a and b roughly in [-128,127]. Keeps
+	// Math.pow for the cube root so color tables cached by PaletteTable stay
+	// valid.
+	public static void toLabExact(int rgb, double[] lab) {
+		double r = LINEAR[(rgb >> 16) & 0xFF];
+		double g = LINEAR[(rgb >> 8) & 0xFF];
+		double b = LINEAR[rgb & 0xFF];
+		double fx = fExact((0.4360747 * r + 0.3850649 * g + 0.1430804 * b) / 0.96422);
+		double fy = fExact((0.2225045 * r + 0.7168786 * g + 0.0606169 * b) / 1.0);
+		double fz = fExact((0.0139322 * r + 0.0971045 * g + 0.7141733 * b) / 0.82521);
+		lab[0] = 116 * fy - 16;
+		lab[1] = 500 * (fx - fy);
+		lab[2] = 200 * (fy - fz);
+	}
+
+	// value is X, Y or Z relative to the D50 white point
+	private static double f(double value) {
+		if (value > EPSILON) {
+			return Math.cbrt(value);
+		}
+		return (KAPPA * value + 16.0) / 116.0;
+	}
+
+	private static double fExact(double value) {
+		if (value > EPSILON) {
+			return Math.pow(value, 1.0 / 3.0);
+		}
+		return (KAPPA * value + 16.0) / 116.0;
+	}
+
+}
@@ -0,0 +1,97 @@
+// Checks LabConverter against the conversion it replaced for all 2^24 colors
+// (integer LAB values must be the same, exact values bit for bit) and
+// compares their speed.
+// Usage: java LabConverterBenchmark
+public class LabConverterBenchmark {
+
+	private static final int COLORS = 1 << 24;
+	private static final int ROUNDS = 3;
+
+	public static void main(String[] args) {
+		int[] lab = new int[3];
+		double[] labExact = new double[3];
+		for (int rgb = 0; rgb < COLORS; rgb++) {
+			int[] rgbTriple = { (rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF };
+			double[] expected = referenceLabExact(rgbTriple);
+			LabConverter.toLabExact(rgb, labExact);
+			LabConverter.toLab(rgb, lab);
+			if (labExact[0] != expected[0] || labExact[1] != expected[1] || labExact[2] != expected[2]
+					|| lab[0] != (int) (2.55 * expected[0]) || lab[1] != 128 + (int) expected[1]
+					|| lab[2] != 128 + (int) expected[2]) {
+				System.out.println("Mismatch for RGB " + rgbTriple[0] + " " + rgbTriple[1] + " " + rgbTriple[2]);
+				System.exit(1);
+			}
+		}
+		System.out.println("All colors match.");
+
+		double referenceTime = Double.MAX_VALUE;
+		double fastTime = Double.MAX_VALUE;
+		long checksum = 0;
+		for (int round = 0; round < ROUNDS + 1; round++) {
+			long start = System.nanoTime();
+			for (int rgb = 0; rgb < COLORS; rgb++) {
+				double[] reference = referenceLabExact(new int[] { (rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF });
+				checksum += (int) (2.55 * reference[0]) + (int) reference[1] + (int) reference[2];
+			}
+			long middle = System.nanoTime();
+			for (int rgb = 0; rgb < COLORS; rgb++) {
+				LabConverter.toLab(rgb, lab);
+				checksum += lab[0] + lab[1] + lab[2];
+			}
+			long end = System.nanoTime();
+			// first round is warmup
+			if (round > 0) {
+				referenceTime = Math.min(referenceTime, (middle - start) / 1e9);
+				fastTime = Math.min(fastTime, (end - middle) / 1e9);
+			}
+		}
+		// keep the JIT from dropping the conversions
+		if (checksum == 42) {
+			System.out.println();
+		}
+		System.out.println("old: " + (int) (COLORS / referenceTime) + " colors/s");
+		System.out.println("LabConverter: " + (int) (COLORS / fastTime) + " colors/s");
+		System.out.println("speedup: " + Math.round(referenceTime / fastTime * 100) / 100.0 + "x");
+	}
+
+	// the conversion MapConverter used before LabConverter
+	private static double[] referenceLabExact(int[] rgb) {
+		double[] values = new double[3];
+		for (int i = 0; i < 3; i++) {
+			double V = rgb[i] / 255.0;
+			double v = Math.pow(V, 2.2);
+			if (V <= 0.04045) {
+				v = V / 12.92;
+			} else {
+				v = Math.pow((V + 0.055) / 1.055, 2.4);
+			}
+			values[i] = v;
+		}
+		double[] XYZ = new double[3];
+		XYZ[0] = 0.4360747 * values[0] + 0.3850649 * values[1] + 0.1430804 * values[2];
+		XYZ[1] = 0.2225045 * values[0] + 0.7168786 * values[1] + 0.0606169 * values[2];
+		XYZ[2] = 0.0139322 * values[0] + 0.0971045 * values[1] + 0.7141733 * values[2];
+
+		XYZ[0] = XYZ[0] / 0.96422;
+		XYZ[1] = XYZ[1] / 1.0;
+		XYZ[2] = XYZ[2] / 0.82521;
+		double[] fVals = new double[3];
+		for (int i = 0; i < 3; i++) {
+			double f;
+			double val = XYZ[i];
+			double valr = val;
+			if (valr > (216.0 / 24389.0)) {
+				f = Math.pow(valr, 1.0 / 3.0);
+			} else {
+				f = ((24389.0 / 27.0) * valr + 16.0) / 116.0;
+			}
+			fVals[i] = f;
+		}
+		double[] lab = new double[3];
+		lab[0] = 116 * fVals[1] - 16;
+		lab[1] = 500 * (fVals[0] - fVals[1]);
+		lab[2] = 200 * (fVals[1] - fVals[2]);
+		return lab;
+	}
+
+}
@@ -1,11 +1,25 @@
+import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
 public class MapConverter {
 
@@ -18,6 +32,13 @@ public class MapConverter {
 	public static final String BLOCK_STATE_GLASS = "minecraft:glass";
 	public static final String BLOCK_STATE_WATER = "minecraft:water[level=0]";
 
+	// Floyd-Steinberg dithering: {xOffset, yOffset, weight}
+	private static final int[][] DITHERING_MATRIX = { { 1, 0, 7 }, { -1, 1, 3 }, { 0, 1, 5 }, { 1, 1, 1 } };
+	private static final double DITHERING_SCALE_FACTOR = 16.0;
+
+	// threads writing files while terrain is generated
+	private static final int OUTPUT_THREADS = 2;
+
 	private static final String version = "0.0.17";
 	private static final String REDDIT_URL = "https://www.reddit.com/r/Minecraft/comments/gu1npm";
 
@@ -28,7 +49,34 @@ public class MapConverter {
 	// config options
 	private static boolean allowWater = true;
 	private static boolean dithering = true;
+	// dither every section on its own, blending seamBlend pixels around it
+	private static boolean tileDithering = false;
+	private static int seamBlend = 0;
 	private static Mode mode = Mode.STAIRCASE;
+	private static ColorMetric colorMetric = ColorMetric.CIE76;
+	private static boolean memoryMapColors = false;
+	private static boolean writeColors = false;
+	private static boolean frameSequence = false;
+	// target size if resizing, 0 otherwise
+	private static int resizeWidth = 0;
+	private static int resizeHeight = 0;
+	private static ImageResizer.Filter resizeFilter = ImageResizer.Filter.LANCZOS;
+	// write all structures into <namespace>.zip instead of files, null if not
+	private static String datapackNamespace = null;
+	private static DatapackWriter datapack = null;
+	// this is shard number shard (from 1) of shards, 0 if not sharded
+	private static int shard = 0;
+	private static int shards = 0;
+	// downscaled preview if > 0, 1/previewScale of the size
+	private static int previewScale = 0;
+	// preview of every section as its own image
+	private static boolean previewSections = false;
+	// null converts all sections
+	private static SectionSelection sectionSelection = null;
+	// threads and queues, from the memory each stage needs
+	private static MemoryScheduler scheduler = null;
+	// closest colors cached at most, limited if the heap is small
+	private static int colorCacheLimit = Integer.MAX_VALUE;
 
 	private static String pathToOutputFolder;
 	private static String pathToInputImage;
@@ -40,113 +88,279 @@ public class MapConverter {
 	private static String bestBlockState[] = new String[numberOfBaseColors];
 	private static boolean bestBlockNeedsSupport[] = new boolean[numberOfBaseColors];
 	private static String supportBlockState = null;
+	// closest color search for CIE76
+	private static PaletteSearch paletteSearch = null;
+	// precomputed closest colors, only used for the expensive metrics
+	private static PaletteTable paletteTable = null;
 
 	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals("--merge")) {
+			// combine the output of all shards, nothing is converted
+			if (args.length < 2) {
+				System.out.println("Invalid arguments. Use --help for help.");
+				System.exit(1);
+			}
+			ShardManifest.merge(args[1].endsWith("/") ? args[1] : args[1] + "/");
+			return;
+		}
+		MemoryScheduler.trackCollections();
 		System.out.println("Parsing arguments and config.txt...");
 		parseArguments(args);
 		parseConfig();
 		System.out.println("Initializing color data, saving color palette preview...");
 		initColorData();
 		saveColorPaletteImage(pathToOutputFolder + "colorPalette.png");
+		int cores = Runtime.getRuntime().availableProcessors();
+		if (colorMetric != ColorMetric.CIE76) {
+			// CIE76 is cheap enough to evaluate for every new color on the fly
+			System.out.println("Loading or precomputing color table (" + colorMetric + ")...");
+			paletteTable = PaletteTable.getTable(baseColorsRGB, allowColor, colorMetric, cores);
+		}
+
+		if (frameSequence) {
+			convertFrames(cores);
+		} else {
+			convertImage(cores);
+		}
+		if (shards > 0) {
+			return;
+		}
+		if (datapack != null) {
+			System.out.println("Done! Place " + getDatapackName() + " in <world>/datapacks, the structures are "
+					+ datapackNamespace + ":section.<i>.<j>.");
+		} else {
+			System.out.println("Done! Place the .nbt files in <world>/generated/minecraft/structures.");
+		}
+	}
 
-		String ditherString = dithering ? "" : " without dithering";
+	private static void convertImage(int cores) {
+		String ditherString = !dithering ? " without dithering" : tileDithering ? " dithering per section" : "";
 		System.out.println(
 				"Loading image, reducing colors (" + mode + " mode" + ditherString + "), saving output preview...");
-		// load image
-		BufferedImage workingImage = loadImage(pathToInputImage);
-		// extend image
-		workingImage = extendImage(workingImage);
-		// reduce colors
-		int[][][] colorIndices = getMapColorMatrix(workingImage);
-		// save output preview
-		saveImage(workingImage, pathToOutputFolder + "completeImage.png");
+		// load image, extended to full sections, or only the part the selected
+		// sections need
+		Dimension imageSize = resizeWidth > 0 ? new Dimension(resizeWidth, resizeHeight)
+				: getImageSize(pathToInputImage);
+		int extendedWidth = (int) (128 * Math.ceil((double) imageSize.width / 128));
+		int extendedHeight = (int) (128 * Math.ceil((double) imageSize.height / 128));
+		Rectangle region = new Rectangle(0, 0, extendedWidth, extendedHeight);
+		if (shards > 0) {
+			sectionSelection = getShardSelection(extendedWidth / 128, extendedHeight / 128);
+		}
+		if (sectionSelection != null && !sectionSelection.isEmpty()) {
+			if (sectionSelection.getMaxI() >= extendedWidth / 128 || sectionSelection.getMaxJ() >= extendedHeight / 128) {
+				System.out.println("Selected sections outside of image, which has " + extendedWidth / 128 + "x"
+						+ extendedHeight / 128 + " sections.");
+				System.exit(1);
+			}
+			region = getRequiredRegion(sectionSelection, extendedWidth);
+		}
+		planMemory(region.width, region.height, resizeWidth > 0 ? getResizeBytes(pathToInputImage, region.width) : 0,
+				false, cores);
+		// reduce colors, sections are turned into structure files in the
+		// background as soon as their rows are done
+		ConversionPipeline pipeline = createPipeline();
+		// a shard may have no sections if there are more shards than rows
+		ColorIndexStore colorIndices = null;
+		if (sectionSelection == null || !sectionSelection.isEmpty()) {
+			BufferedImage workingImage = loadImage(pathToInputImage, region);
+			// same for the output preview, unless it would only be part of the image
+			PreviewWriter preview = createPreviewWriter(workingImage,
+					sectionSelection == null ? "completeImage" : null, "", cores);
+			colorIndices = getMapColorMatrix(workingImage, pipeline, preview, region.x / 128, region.y / 128);
+			workingImage = null;
+			if (preview != null) {
+				preview.close();
+			}
+		}
+
+		if (writeColors && colorIndices != null) {
+			try {
+				colorIndices.writeToFile(pathToOutputFolder + "colors" + getShardSuffix() + ".bin");
+			} catch (IOException e) {
+				System.out.println("Something went wrong:");
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
 
 		System.out.println("Writing structure files...");
-		// cut up matrix into square sections
-		for (int i = 0; i < workingImage.getWidth() / 128; i++) {
-			for (int j = 0; j < workingImage.getHeight() / 128; j++) {
-				// copy relevant parts of color matrix
-				int[][][] subMatrix = new int[128][128][2];
-				for (int x = 0; x < 128; x++) {
-					for (int y = 0; y < 128; y++) {
-						subMatrix[x][y] = colorIndices[i * 128 + x][j * 128 + y];
+		finishPipeline(pipeline);
+		if (colorIndices != null) {
+			colorIndices.close();
+		}
+		// don't overwrite the report for the whole image with a partial one
+		String materialsName = shards > 0 ? "materials" + getShardSuffix()
+				: sectionSelection == null ? "materials" : "materials.selected";
+		pipeline.writeMaterialReports(pathToOutputFolder + materialsName);
+		System.out.println("Block counts for " + (sectionSelection == null ? "whole image:" : "selected sections:"));
+		System.out.print(pipeline.getTotalMaterials());
+		System.out.println("Bill of materials saved as " + materialsName + ".csv and " + materialsName + ".json.");
+		if (shards > 0) {
+			writeShardManifest(extendedWidth / 128, extendedHeight / 128);
+		}
+	}
+
+	// Sections of this shard. With dithering across the whole image, rows of
+	// sections can only be finished top to bottom, so every shard gets a band
+	// of rows (and still reduces everything above it, see getRequiredRegion).
+	// Sections dithered on their own are dealt out one by one instead, which
+	// balances the work better.
+	private static SectionSelection getShardSelection(int sectionsX, int sectionsY) {
+		SectionSelection selection = new SectionSelection();
+		if (dithering && tileDithering) {
+			for (int j = 0; j < sectionsY; j++) {
+				for (int i = 0; i < sectionsX; i++) {
+					if ((j * sectionsX + i) % shards == shard - 1) {
+						selection.add(i, j, i, j);
 					}
 				}
-				// generate terrain
-				TerrainSquare terrain = new TerrainSquare(subMatrix, bestBlockState, bestBlockNeedsSupport,
-						supportBlockState, mode);
-				terrain.createTerrain();
-
-				// count blocks before adding glass floor
-				System.out.println("Block counts for section " + i + "." + j + ":");
-				HashMap<String, Integer> blockCounts = terrain.countBlocks();
-				for (String blockState : blockCounts.keySet()) {
-					System.out.println("\t" + blockState + ": " + blockCounts.get(blockState));
+			}
+		} else {
+			int firstRow = (shard - 1) * sectionsY / shards;
+			int lastRow = shard * sectionsY / shards - 1;
+			if (firstRow <= lastRow) {
+				selection.add(0, firstRow, sectionsX - 1, lastRow);
+			}
+		}
+		return selection;
+	}
+
+	// marks this shard as done, see ShardManifest
+	private static void writeShardManifest(int sectionsX, int sectionsY) {
+		ShardManifest manifest = new ShardManifest(shard, shards, datapackNamespace);
+		for (int j = 0; j < sectionsY; j++) {
+			for (int i = 0; i < sectionsX; i++) {
+				if (sectionSelection.contains(i, j)) {
+					String sectionName = i + "." + j;
+					manifest.addSection(sectionName, datapackNamespace != null
+							? datapackNamespace + ":section." + sectionName
+							: "structure/section." + sectionName + ".nbt");
 				}
+			}
+		}
+		manifest.writeToFile(pathToOutputFolder);
+		System.out.println("Shard " + shard + " of " + shards + " done, run with --merge " + pathToOutputFolder
+				+ " once all are.");
+	}
+
+	// ".shard.<k>of<n>" for files only this shard writes, empty if not sharded
+	private static String getShardSuffix() {
+		return shards > 0 ? "." + ShardManifest.getName(shard, shards) : "";
+	}
 
-				terrain.addGlassFloor();
+	// like the material reports, a datapack of only some sections doesn't
+	// overwrite the one of the whole image
+	private static String getDatapackName() {
+		if (shards > 0) {
+			return datapackNamespace + getShardSuffix() + ".zip";
+		}
+		return datapackNamespace + (sectionSelection == null ? ".zip" : ".selected.zip");
+	}
 
-				// save as structure file
-				terrain.saveToStructure(pathToOutputFolder + "structure/section." + i + "." + j + ".nbt");
+	// converts every frame of an animation, but only writes structure files
+	// for sections that changed since the previous frame
+	private static void convertFrames(int cores) {
+		String ditherString = !dithering ? " without dithering" : tileDithering ? " dithering per section" : "";
+		System.out.println("Loading frames, reducing colors (" + mode + " mode" + ditherString
+				+ "), writing changed sections...");
+		FrameReader frames = null;
+		try {
+			frames = FrameReader.open(pathToInputImage);
+		} catch (IOException e) {
+			System.out.println("Failed to read frames:");
+			e.printStackTrace();
+			System.exit(1);
+		}
+		new File(pathToOutputFolder + "frames").mkdirs();
+		int frameWidth = resizeWidth > 0 ? resizeWidth : frames.getWidth();
+		int frameHeight = resizeWidth > 0 ? resizeHeight : frames.getHeight();
+		// frames are decoded as a whole by FrameReader
+		long resizeBytes = resizeWidth > 0 ? new ImageResizer(frames.getWidth(), frames.getHeight(), resizeWidth,
+				resizeHeight, resizeFilter, cores).getWorkingBytes(resizeWidth, true) : 0;
+		planMemory((int) (128 * Math.ceil((double) frameWidth / 128)),
+				(int) (128 * Math.ceil((double) frameHeight / 128)), resizeBytes, true, cores);
+		ConversionPipeline pipeline = createPipeline();
+		FrameManifest manifest = new FrameManifest();
+		ColorIndexStore previousColorIndices = null;
+		for (int frame = 0; frame < frames.getFrameCount(); frame++) {
+			BufferedImage workingImage = null;
+			try {
+				workingImage = frames.nextFrame();
+				if (resizeWidth > 0) {
+					workingImage = new ImageResizer(workingImage.getWidth(), workingImage.getHeight(), resizeWidth,
+							resizeHeight, resizeFilter, cores).resize(workingImage);
+				}
+				workingImage = extendImage(workingImage);
+			} catch (IOException e) {
+				System.out.println("Failed to read frames:");
+				e.printStackTrace();
+				System.exit(1);
+			}
+			PreviewWriter preview = createPreviewWriter(workingImage, "frames/frame" + frame, "frame" + frame + ".",
+					cores);
+			ColorIndexStore colorIndices = getMapColorMatrix(workingImage, null, preview, 0, 0);
+			preview.close();
+
+			manifest.startFrame();
+			for (int j = 0; j < workingImage.getHeight() / 128; j++) {
+				for (int i = 0; i < workingImage.getWidth() / 128; i++) {
+					if (sectionSelection != null && !sectionSelection.contains(i, j)) {
+						continue;
+					}
+					if (previousColorIndices == null || !colorIndices.sectionEquals(previousColorIndices, i, j)) {
+						String fileName = "structure/frame" + frame + ".section." + i + "." + j + ".nbt";
+						pipeline.submitSection(colorIndices.getSection(i, j), "frame" + frame + "." + i + "." + j,
+								pathToOutputFolder + fileName);
+						// in a datapack, list the structure's name instead
+						manifest.setChanged(i + "." + j, datapack == null ? fileName
+								: datapackNamespace + ":frame" + frame + ".section." + i + "." + j);
+					}
+				}
 			}
+			System.out.println("Frame " + frame + ": " + manifest.getChangedCount(frame) + " changed sections");
+
+			if (previousColorIndices != null) {
+				previousColorIndices.close();
+			}
+			previousColorIndices = colorIndices;
 		}
-		System.out.println("Done! Place the .nbt files in <world>/generated/minecraft/structures.");
+
+		System.out.println("Writing structure files...");
+		finishPipeline(pipeline);
+		previousColorIndices.close();
+		frames.close();
+		manifest.writeToFile(pathToOutputFolder + "manifest.json");
+		pipeline.writeMaterialReports(pathToOutputFolder + "materials");
+		System.out.println("Block counts for all written sections:");
+		System.out.print(pipeline.getTotalMaterials());
+		System.out.println("Frame manifest saved as manifest.json, bill of materials as materials.csv and materials.json.");
 	}
 
-	// returns array indexed by [x][y][i], i being 0=colorIndex and 1=variation
+	// returns the map color of every pixel
 	// modifies image if dithering is enabled
-	private static int[][][] getMapColorMatrix(BufferedImage image) {
+	// every finished row of sections is handed to the pipeline and the
+	// preview writer right away (both may be null), named by their position in
+	// the whole image: image starts at section firstI.firstJ
+	private static ColorIndexStore getMapColorMatrix(BufferedImage image, ConversionPipeline pipeline,
+			PreviewWriter preview, int firstI, int firstJ) {
+		if (tileDithering) {
+			return getMapColorMatrixByTiles(image, pipeline, preview, firstI, firstJ);
+		}
 		int width = image.getWidth();
 		int height = image.getHeight();
-		int[][][] mapMatrix = new int[width][height][2];
+		ColorIndexStore mapMatrix = createColorIndexStore(width, height);
 		int totalPixels = width * height;
 		int counter = 0;
 		int percentOld = 0;
 
 		// cache mapping rgb color to color id
 		HashMap<Integer, int[]> colorMap = new HashMap<Integer, int[]>();
-		// Floyd-Steinberg dithering
-		int[][] ditheringMatrix = { { 1, 0, 7 }, { -1, 1, 3 }, { 0, 1, 5 }, { 1, 1, 1 } };
-		double ditheringScaleFactor = 16.0;
 
 		for (int y = 0; y < height; y++) {
 			for (int x = 0; x < width; x++) {
-				// Find closest color for every pixel
-				int bestMatch[] = { 0, 0 };
-				int originalRGBint = image.getRGB(x, y);
-				int[] originalRGB = getRGBtriple(originalRGBint);
-				if (colorMap.containsKey(originalRGBint)) {
-					bestMatch = colorMap.get(originalRGBint);
-				} else {
-					bestMatch = findClosestBaseColor(originalRGBint);
-					colorMap.put(originalRGBint, bestMatch);
-				}
-				int rgbClosest = getRGBint(baseColorsRGB[bestMatch[0]][bestMatch[1]]);
-				// save color
-				image.setRGB(x, y, rgbClosest);
-				mapMatrix[x][y] = bestMatch;
-
-				// Dithering: diffuse error
-				if (dithering) {
-					int[] matchRGB = getRGBtriple(rgbClosest);
-					double[] differenceRGB = new double[3];
-					for (int channel = 0; channel < 3; channel++) {
-						differenceRGB[channel] = originalRGB[channel] - matchRGB[channel];
-					}
-					for (int index = 0; index < ditheringMatrix.length; index++) {
-						int xOffset = ditheringMatrix[index][0];
-						int yOffset = ditheringMatrix[index][1];
-						if (x + xOffset < width && x + xOffset >= 0 && y + yOffset < height && y + yOffset >= 0) {
-							int[] nextRGB = getRGBtriple(image.getRGB(x + xOffset, y + yOffset));
-							for (int channel = 0; channel < 3; channel++) {
-								nextRGB[channel] = (int) Math.min(Math.max((nextRGB[channel]
-										+ differenceRGB[channel] * ditheringMatrix[index][2] / ditheringScaleFactor),
-										0), 255);
-							}
-							image.setRGB(x + xOffset, y + yOffset, getRGBint(nextRGB));
-						}
-					}
-				}
+				int[] bestMatch = reducePixel(image, x, y, colorMap);
+				mapMatrix.set(x, y, bestMatch[0], bestMatch[1]);
 
 				// Percent counter
 				counter++;
@@ -162,51 +376,286 @@ public class MapConverter {
 					}
 				}
 			}
+
+			// dithering only diffuses error downwards, so a row of sections is
+			// final once its last line is done
+			if ((y + 1) % 128 == 0) {
+				sectionRowDone(pipeline, preview, mapMatrix, y / 128, firstI, firstJ);
+			}
 		}
 		return mapMatrix;
 	}
 
-	// returns {colorIndex, variation}, usable as array indices
-	private static int[] findClosestBaseColor(int rgb) {
-		double smallestDifference = Double.MAX_VALUE;
+	// Like getMapColorMatrix, but every section is dithered on its own, only
+	// looking at seamBlend pixels of the original image around it. Sections
+	// don't depend on each other then and are reduced in parallel. Sections
+	// not selected are skipped, their colors are left at 0. image isn't
+	// changed.
+	private static ColorIndexStore getMapColorMatrixByTiles(final BufferedImage image, ConversionPipeline pipeline,
+			PreviewWriter preview, final int firstI, final int firstJ) {
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+		final ColorIndexStore mapMatrix = createColorIndexStore(width, height);
+		// matches don't depend on the tile, so all share one cache
+		final Map<Integer, int[]> colorMap = new ConcurrentHashMap<Integer, int[]>();
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		ArrayList<Future<Object>> tiles = new ArrayList<Future<Object>>();
+		for (int j = 0; j < height / 128; j++) {
+			for (int i = 0; i < width / 128; i++) {
+				if (sectionSelection != null && !sectionSelection.contains(firstI + i, firstJ + j)) {
+					tiles.add(null);
+					continue;
+				}
+				final int tileX = i * 128;
+				final int tileY = j * 128;
+				tiles.add(executor.submit(new Callable<Object>() {
+					public Object call() {
+						// copy of the tile and the blended part around it. the
+						// image itself isn't changed here, other tiles read it.
+						int fromX = Math.max(0, tileX - seamBlend);
+						int fromY = Math.max(0, tileY - seamBlend);
+						int toX = Math.min(width, tileX + 128 + seamBlend);
+						BufferedImage tile = new BufferedImage(toX - fromX, tileY + 128 - fromY,
+								BufferedImage.TYPE_INT_RGB);
+						tile.getGraphics().drawImage(image.getSubimage(fromX, fromY, toX - fromX, tileY + 128 - fromY),
+								0, 0, null);
+						for (int y = 0; y < tile.getHeight(); y++) {
+							for (int x = 0; x < tile.getWidth(); x++) {
+								int[] bestMatch = reducePixel(tile, x, y, colorMap);
+								int imageX = fromX + x;
+								int imageY = fromY + y;
+								if (imageX >= tileX && imageX < tileX + 128 && imageY >= tileY) {
+									mapMatrix.set(imageX, imageY, bestMatch[0], bestMatch[1]);
+								}
+							}
+						}
+						return null;
+					}
+				}));
+			}
+		}
+
+		// hand over rows of sections in order as they finish
+		int sectionsPerRow = width / 128;
+		int percentOld = 0;
+		try {
+			for (int k = 0; k < tiles.size(); k++) {
+				if (tiles.get(k) != null) {
+					tiles.get(k).get();
+				}
+				if ((k + 1) % sectionsPerRow == 0) {
+					sectionRowDone(pipeline, preview, mapMatrix, k / sectionsPerRow, firstI, firstJ);
+				}
+				int percent = (k + 1) * 100 / tiles.size();
+				if (percent / 5 != percentOld / 5) {
+					System.out.print((percentOld == 0 ? "  " : "") + percent / 5 * 5 + "% ");
+					percentOld = percent;
+				}
+			}
+		} catch (InterruptedException e) {
+			System.out.println("Something went wrong:");
+			e.printStackTrace();
+			System.exit(1);
+		} catch (ExecutionException e) {
+			System.out.println("Something went wrong:");
+			e.getCause().printStackTrace();
+			System.exit(1);
+		}
+		executor.shutdown();
+		System.out.println();
+		return mapMatrix;
+	}
+
+	// replaces the pixel with its closest map color and diffuses the error to
+	// the pixels after it if dithering is enabled. returns {colorIndex,
+	// variation}.
+	private static int[] reducePixel(BufferedImage image, int x, int y, Map<Integer, int[]> colorMap) {
+		// Find closest color for every pixel
 		int bestMatch[] = { 0, 0 };
-		int[] imageRGB = getRGBtriple(rgb);
-		for (int colorID = 0; colorID < numberOfBaseColors; colorID++) {
-			for (int variation = 0; variation < 3; variation++) {
-				if (allowColor[colorID][variation]) {
-					double difference = colorDifferenceRGBLAB(imageRGB, baseColorsLAB[colorID][variation]);
-					if (difference < smallestDifference) {
-						bestMatch[0] = colorID;
-						bestMatch[1] = variation;
-						smallestDifference = difference;
+		int originalRGBint = image.getRGB(x, y);
+		int[] originalRGB = getRGBtriple(originalRGBint);
+		if (paletteTable != null) {
+			bestMatch = paletteTable.getMatch(originalRGBint);
+		} else if (colorMap.containsKey(originalRGBint)) {
+			bestMatch = colorMap.get(originalRGBint);
+		} else {
+			bestMatch = findClosestBaseColor(originalRGBint);
+			if (colorMap.size() < colorCacheLimit) {
+				colorMap.put(originalRGBint, bestMatch);
+			}
+		}
+		int rgbClosest = getRGBint(baseColorsRGB[bestMatch[0]][bestMatch[1]]);
+		// save color
+		image.setRGB(x, y, rgbClosest);
+
+		// Dithering: diffuse error
+		if (dithering) {
+			int width = image.getWidth();
+			int height = image.getHeight();
+			int[] matchRGB = getRGBtriple(rgbClosest);
+			double[] differenceRGB = new double[3];
+			for (int channel = 0; channel < 3; channel++) {
+				differenceRGB[channel] = originalRGB[channel] - matchRGB[channel];
+			}
+			for (int index = 0; index < DITHERING_MATRIX.length; index++) {
+				int xOffset = DITHERING_MATRIX[index][0];
+				int yOffset = DITHERING_MATRIX[index][1];
+				if (x + xOffset < width && x + xOffset >= 0 && y + yOffset < height && y + yOffset >= 0) {
+					int[] nextRGB = getRGBtriple(image.getRGB(x + xOffset, y + yOffset));
+					for (int channel = 0; channel < 3; channel++) {
+						nextRGB[channel] = (int) Math.min(Math.max((nextRGB[channel]
+								+ differenceRGB[channel] * DITHERING_MATRIX[index][2] / DITHERING_SCALE_FACTOR), 0),
+								255);
 					}
+					image.setRGB(x + xOffset, y + yOffset, getRGBint(nextRGB));
 				}
 			}
 		}
 		return bestMatch;
 	}
 
-	// http://en.wikipedia.org/wiki/Color_difference#CIE76
-	// Except it's squared since we only care about relative difference
-	// This should be enough for our limited purposes
-	private static double colorDifferenceRGBLAB(int[] rgb, int[] lab) {
-		int[] rgbConvertedToLab = rgb2lab(rgb);
-		return euclideanDistanceSquared(rgbConvertedToLab[0], rgbConvertedToLab[1], rgbConvertedToLab[2], lab[0],
-				lab[1], lab[2]);
+	// hands the selected sections of row j of mapMatrix, which starts at
+	// section firstI.firstJ, to the pipeline and the row to the preview
+	private static void sectionRowDone(ConversionPipeline pipeline, PreviewWriter preview,
+			ColorIndexStore mapMatrix, int j, int firstI, int firstJ) {
+		for (int i = 0; i < mapMatrix.getWidth() / 128; i++) {
+			String sectionName = (firstI + i) + "." + (firstJ + j);
+			if (sectionSelection != null && !sectionSelection.contains(firstI + i, firstJ + j)) {
+				continue;
+			}
+			if (pipeline != null) {
+				pipeline.submitSection(mapMatrix.getSection(i, j), sectionName,
+						pathToOutputFolder + "structure/section." + sectionName + ".nbt");
+			}
+			if (preview != null) {
+				preview.addSection(mapMatrix, i, j, sectionName);
+			}
+		}
+		if (preview != null) {
+			preview.addSectionRow(mapMatrix, j);
+		}
 	}
 
-	private static double euclideanDistanceSquared(int x1, int x2, int x3, int y1, int y2, int y3) {
-		return (x1 - y1) * (x1 - y1) + (x2 - y2) * (x2 - y2) + (x3 - y3) * (x3 - y3);
+	// writes <name>.png, <name>.small.png and preview/<sectionPrefix>section.i.j.png
+	// if requested, name may be null to only write sections. null if nothing
+	// is written.
+	private static PreviewWriter createPreviewWriter(BufferedImage image, String name, String sectionPrefix,
+			int cores) {
+		if (name == null && !previewSections) {
+			return null;
+		}
+		String fullFileName = name == null ? null : pathToOutputFolder + name + ".png";
+		String scaledFileName = name == null || previewScale == 0 ? null : pathToOutputFolder + name + ".small.png";
+		String sectionFilePrefix = null;
+		if (previewSections) {
+			new File(pathToOutputFolder + "preview").mkdirs();
+			sectionFilePrefix = pathToOutputFolder + "preview/" + sectionPrefix + "section.";
+		}
+		return new PreviewWriter(fullFileName, scaledFileName, previewScale, sectionFilePrefix, image.getWidth(),
+				image.getHeight(), baseColorsRGB, cores);
 	}
 
-	// Pad image so we get full 128*128 sections
-	private static BufferedImage extendImage(BufferedImage image) {
-		int width = (int) (128 * Math.ceil((double) image.getWidth() / 128));
-		int height = (int) (128 * Math.ceil((double) image.getHeight() / 128));
+	// plans threads and queues for images of width * height pixels, resizing
+	// needs resizeBytes (0 if not resized), see MemoryScheduler. colors may be
+	// memory-mapped and the color cache limited afterwards.
+	private static void planMemory(int width, int height, long resizeBytes, boolean animation, int cores) {
+		scheduler = new MemoryScheduler(width, height, resizeBytes, animation, memoryMapColors, paletteTable == null,
+				allowWater, cores);
+		scheduler.printPlan();
+		memoryMapColors = scheduler.isMappingColors();
+		colorCacheLimit = scheduler.getColorCacheLimit();
+	}
 
-		BufferedImage extendedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-		extendedImage.getGraphics().drawImage(image, 0, 0, null);
-		return extendedImage;
+	// pipeline writing structure files, or into the datapack if requested.
+	// its terrain threads follow the memory pressure until it's finished.
+	private static ConversionPipeline createPipeline() {
+		ConversionPipeline pipeline = new ConversionPipeline(scheduler.getTerrainThreads(),
+				scheduler.getQueuedSections(), OUTPUT_THREADS, scheduler.getQueuedWrites(), bestBlockState,
+				bestBlockNeedsSupport, supportBlockState, mode);
+		scheduler.watch(pipeline);
+		if (datapackNamespace != null) {
+			try {
+				datapack = new DatapackWriter(pathToOutputFolder + getDatapackName(), datapackNamespace);
+			} catch (IOException e) {
+				System.out.println("Something went wrong:");
+				e.printStackTrace();
+				System.exit(1);
+			}
+			pipeline.setDatapack(datapack);
+		}
+		return pipeline;
+	}
+
+	// waits for all structures to be written
+	private static void finishPipeline(ConversionPipeline pipeline) {
+		pipeline.finish();
+		scheduler.stopWatching();
+		if (pipeline.getDuplicateCount() > 0) {
+			System.out.println(pipeline.getDuplicateCount()
+					+ " sections were the same as an earlier one, generated once and linked or copied.");
+		}
+		if (datapack != null) {
+			try {
+				datapack.close();
+			} catch (IOException e) {
+				System.out.println("Something went wrong:");
+				e.printStackTrace();
+				System.exit(1);
+			}
+			System.out.println("Structures saved in datapack " + getDatapackName());
+		}
+	}
+
+	private static ColorIndexStore createColorIndexStore(int width, int height) {
+		if (!memoryMapColors) {
+			return ColorIndexStore.createInHeap(width, height);
+		}
+		try {
+			return ColorIndexStore.createMapped(width, height, new File(pathToOutputFolder));
+		} catch (IOException e) {
+			System.out.println("Something went wrong:");
+			e.printStackTrace();
+			System.exit(1);
+			return null;
+		}
+	}
+
+	// returns {colorIndex, variation}, usable as array indices
+	private static int[] findClosestBaseColor(int rgb) {
+		int[] imageLAB = new int[3];
+		LabConverter.toLab(rgb, imageLAB);
+		int paletteIndex = paletteSearch.findClosest(imageLAB[0], imageLAB[1], imageLAB[2]);
+		int bestMatch[] = { paletteIndex / 3, paletteIndex % 3 };
+		return bestMatch;
+	}
+
+	// Part of the (extended) image the selected sections depend on. Without
+	// dithering that's just the sections, with dithering per section the
+	// sections and what's blended around them. Dithering moves error to the right
+	// along a row and at most one pixel left per row down, so it also needs
+	// everything above, everything to the left and some pixels to the right.
+	private static Rectangle getRequiredRegion(SectionSelection selection, int extendedWidth) {
+		int minX = selection.getMinI() * 128;
+		int minY = selection.getMinJ() * 128;
+		int maxX = (selection.getMaxI() + 1) * 128; // exclusive
+		int maxY = (selection.getMaxJ() + 1) * 128; // exclusive
+		if (!dithering) {
+			return new Rectangle(minX, minY, maxX - minX, maxY - minY);
+		}
+		if (tileDithering) {
+			// blending looks at most one section further, but not below
+			if (seamBlend > 0) {
+				minX = Math.max(0, minX - 128);
+				minY = Math.max(0, minY - 128);
+				maxX = Math.min(extendedWidth, maxX + 128);
+			}
+			return new Rectangle(minX, minY, maxX - minX, maxY - minY);
+		}
+		// error dropped at the right edge can't reach the sections anymore
+		int width = Math.min(extendedWidth, (int) (128 * Math.ceil((double) (maxX + maxY) / 128)));
+		return new Rectangle(0, 0, width, maxY);
 	}
 
 	private static void parseArguments(String[] args) {
@@ -223,7 +672,7 @@ public class MapConverter {
 			pathToInputImage = args[0];
 		} else {
 			System.out.println("Invalid arguments. Use --help for help.");
-			System.exit(0);
+			System.exit(1);
 		}
 
 		boolean foundOutputArgument = false;
@@ -241,8 +690,7 @@ public class MapConverter {
 		if (!pathToOutputFolder.endsWith("/")) {
 			pathToOutputFolder += "/";
 		}
-		File structureDir = new File(pathToOutputFolder + "structure");
-		structureDir.mkdirs(); // Also creates parent folder
+		new File(pathToOutputFolder).mkdirs();
 
 		for (int i = 0; i < args.length; i++) {
 			if (args[i].equals("--nowater")) {
@@ -251,6 +699,107 @@ public class MapConverter {
 			if (args[i].equals("--nodither")) {
 				dithering = false;
 			}
+			if (args[i].equals("--tile-dither")) {
+				tileDithering = true;
+			}
+			if (args[i].equals("--seam-blend")) {
+				try {
+					seamBlend = Integer.parseInt(args[i + 1]);
+				} catch (Exception e) {
+					seamBlend = -1;
+				}
+				if (seamBlend < 1 || seamBlend > 128) {
+					System.out.println("Invalid seam blend, must be 1 to 128 pixels. Use --help for help.");
+					System.exit(1);
+				}
+			}
+			if (args[i].equals("--shard")) {
+				String[] shardString = args.length > i + 1 ? args[i + 1].split("/") : new String[0];
+				try {
+					shard = Integer.parseInt(shardString[0]);
+					shards = Integer.parseInt(shardString[1]);
+				} catch (Exception e) {
+					shards = 0;
+				}
+				if (shardString.length != 2 || shards < 1 || shard < 1 || shard > shards) {
+					System.out.println("Invalid shard, use k/n with 1 <= k <= n. Use --help for help.");
+					System.exit(1);
+				}
+			}
+			if (args[i].equals("--preview-scale")) {
+				try {
+					previewScale = Integer.parseInt(args[i + 1]);
+				} catch (Exception e) {
+					previewScale = -1;
+				}
+				// has to divide the section size
+				if (previewScale < 2 || previewScale > 128 || 128 % previewScale != 0) {
+					System.out.println("Invalid preview scale, must be 2, 4, 8, 16, 32, 64 or 128. Use --help for help.");
+					System.exit(1);
+				}
+			}
+			if (args[i].equals("--preview-sections")) {
+				previewSections = true;
+			}
+			if (args[i].equals("--datapack")) {
+				datapackNamespace = args.length > i + 1 ? args[i + 1] : "";
+				// allowed characters of resource locations
+				if (!datapackNamespace.matches("[a-z0-9_.-]+")) {
+					System.out.println("Invalid datapack namespace, use a-z, 0-9, _, . and -. Use --help for help.");
+					System.exit(1);
+				}
+			}
+			if (args[i].equals("--sections")) {
+				if (args.length > i + 1) {
+					sectionSelection = SectionSelection.parse(args[i + 1]);
+				}
+				if (sectionSelection == null) {
+					System.out.println("Invalid sections. Use --help for help.");
+					System.exit(1);
+				}
+			}
+			if (args[i].equals("--maps") || args[i].equals("--size")) {
+				// WxH, in maps or pixels
+				int factor = args[i].equals("--maps") ? 128 : 1;
+				String[] size = args.length > i + 1 ? args[i + 1].toLowerCase().split("x") : new String[0];
+				try {
+					resizeWidth = factor * Integer.parseInt(size[0]);
+					resizeHeight = factor * Integer.parseInt(size[1]);
+				} catch (Exception e) {
+					resizeWidth = 0;
+				}
+				if (size.length != 2 || resizeWidth <= 0 || resizeHeight <= 0) {
+					System.out.println("Invalid size. Use --help for help.");
+					System.exit(1);
+				}
+			}
+			if (args[i].equals("--resize-filter")) {
+				if (args.length > i + 1) {
+					for (ImageResizer.Filter potentialFilter : ImageResizer.Filter.values()) {
+						if (potentialFilter.toString().toLowerCase().equals(args[i + 1].toLowerCase())) {
+							resizeFilter = potentialFilter;
+						}
+					}
+				}
+			}
+			if (args[i].equals("--frames")) {
+				frameSequence = true;
+			}
+			if (args[i].equals("--write-colors")) {
+				writeColors = true;
+			}
+			if (args[i].equals("--mmap")) {
+				memoryMapColors = true;
+			}
+			if (args[i].equals("--metric")) {
+				if (args.length > i + 1) {
+					for (ColorMetric potentialMetric : ColorMetric.values()) {
+						if (potentialMetric.toString().toLowerCase().equals(args[i + 1].toLowerCase())) {
+							colorMetric = potentialMetric;
+						}
+					}
+				}
+			}
 			if (args[i].equals("--mode")) {
 				if (args.length > i + 1) {
 					for (Mode potentialMode : Mode.values()) {
@@ -261,10 +810,22 @@ public class MapConverter {
 				}
 			}
 		}
+		if (seamBlend > 0 && !tileDithering) {
+			System.out.println("--seam-blend only works with --tile-dither. Use --help for help.");
+			System.exit(1);
+		}
+		if (shards > 0 && (sectionSelection != null || frameSequence)) {
+			System.out.println("--shard can't be combined with --sections or --frames. Use --help for help.");
+			System.exit(1);
+		}
+		if (datapackNamespace == null) {
+			new File(pathToOutputFolder + "structure").mkdirs();
+		}
 	}
 
 	private static void printHelpAndQuit() {
 		System.out.println("Usage: java -jar MapConverter.jar infile [outpath] [options]");
+		System.out.println("\tor: java -jar MapConverter.jar --merge outpath");
 		System.out.println("\tIf not specified, outpath will be \"out\" in the same folder as infile");
 		System.out.println("\tWarning: Contents of outpath folder may be overwritten.");
 
@@ -273,11 +834,50 @@ public class MapConverter {
 		System.out.println("--about\t\t\tPrint info");
 		System.out.println("--nodither\t\tDisable dithering");
 		System.out.println("--nowater\t\tDisable Water");
+		System.out.println("--tile-dither\t\tDither every section on its own. Sections don't depend on");
+		System.out.println("\t\t\t\teach other then and are reduced in parallel.");
+		System.out.println("--seam-blend <n>\tRequires --tile-dither. Start dithering n pixels (1-128)");
+		System.out.println("\t\t\t\taround each section to hide the seams between sections");
+
+		System.out.println("--sections <list>\tOnly convert these sections, e.g. 3.7,0.0-2.1");
+		System.out.println("\t\t\t\t(single sections i.j or rectangles i1.j1-i2.j2)");
+		System.out.println("--shard <k>/<n>\t\tOnly convert the k-th of n parts of the image, e.g. on");
+		System.out.println("\t\t\t\tdifferent machines with the same outpath. Without");
+		System.out.println("\t\t\t\t--tile-dither, a part still has to reduce all rows above it.");
+		System.out.println("\t\t\t\tShards and --merge save no completeImage preview, use");
+		System.out.println("\t\t\t\t--preview-sections for a preview of every section.");
+		System.out.println("--merge <outpath>\tCombine the parts of all shards in outpath into manifest.json,");
+		System.out.println("\t\t\t\tmaterials.csv/.json (and <ns>.zip with --datapack)");
+		System.out.println("--maps <W>x<H>\t\tResize image to W*H maps, e.g. 4x3 (stretches)");
+		System.out.println("--size <W>x<H>\t\tResize image to W*H pixels (stretches)");
+		System.out.println("--resize-filter <f>\tLANCZOS (default) or AREA (for large reductions)");
+		System.out.println("--frames\t\tinfile is an animation (e.g. animated GIF) or a folder of");
+		System.out.println("\t\t\t\tnumbered frames. Only changed sections are written per frame,");
+		System.out.println("\t\t\t\tsee manifest.json. Use with --nodither for few changes.");
+		System.out.println("--mmap\t\t\tKeep reduced colors in a memory-mapped temp file in outpath");
+		System.out.println("\t\t\t\tinstead of the heap (for huge images, done automatically if");
+		System.out.println("\t\t\t\tthe heap is too small)");
+
+		System.out.println("--preview-scale <n>\tAlso save the preview at 1/n of the size (n = 2, 4, ... 128)");
+		System.out.println("\t\t\t\tas completeImage.small.png");
+		System.out.println("--preview-sections\tAlso save the preview of every section as");
+		System.out.println("\t\t\t\tpreview/section.<i>.<j>.png");
+		System.out.println("--datapack <ns>\t\tWrite all structures into one datapack <ns>.zip instead of");
+		System.out.println("\t\t\t\tfiles, usable in game as <ns>:section.<i>.<j>");
+		System.out.println("\t\t\t\t(<ns>.selected.zip with --sections)");
+		System.out.println("--write-colors\t\tSave reduced colors as colors.bin, one byte per pixel,");
+		System.out.println("\t\t\t\trow by row: 3 * (color ID - 1) + shade (0 dark - 2 light)");
 
 		System.out.println("--mode <mode>\t\tTerrain modes. Options for <mode>:");
 		System.out.println("\t\t\t\tSTAIRCASE, FLAT, GROUNDED, ASCENDING, DESCENDING");
 		System.out.println("\t\t\t\t(Full color range only available for STAIRCASE and GROUNDED)");
 
+		System.out.println("--metric <metric>\tColor difference formula. Options for <metric>:");
+		System.out.println("\t\t\t\tCIE76 (default), CIE94, CIEDE2000");
+		System.out.println("\t\t\t\t(The latter two precompute a color table once, cached in cache/)");
+
+		System.out.println("\nRun with java --add-modules jdk.incubator.vector ... for faster color matching");
+		System.out.println("(if built with the vector/ sources, see README.md).");
 		System.out.println("For more help see " + REDDIT_URL);
 
 		System.exit(0);
@@ -312,7 +912,8 @@ public class MapConverter {
 				tripleRGB[0] = tripleRGB[0] * scale / 255;
 				tripleRGB[1] = tripleRGB[1] * scale / 255;
 				tripleRGB[2] = tripleRGB[2] * scale / 255;
-				int[] tripleLAB = rgb2lab(tripleRGB);
+				int[] tripleLAB = new int[3];
+				LabConverter.toLab(getRGBint(tripleRGB), tripleLAB);
 				baseColorsRGB[colorID][variation] = tripleRGB;
 				baseColorsLAB[colorID][variation] = tripleLAB;
 			}
@@ -366,6 +967,8 @@ public class MapConverter {
 			allowColor[11][VARIATION_NORMAL] = false;
 			allowColor[11][VARIATION_LIGHTER] = false;
 		}
+
+		paletteSearch = PaletteSearch.create(baseColorsLAB, allowColor);
 	}
 
 	// parse config.txt and populate block states
@@ -373,7 +976,7 @@ public class MapConverter {
 		File file = new File("config.txt");
 		if (!file.exists()) {
 			System.out.println("Missing config.txt, exiting...");
-			System.exit(0);
+			System.exit(1);
 		}
 		try {
 			BufferedReader br = new BufferedReader(new FileReader(file));
@@ -402,7 +1005,7 @@ public class MapConverter {
 		} catch (Exception e) {
 			System.out.println("Exception reading config.txt, exiting...");
 			e.printStackTrace();
-			System.exit(0);
+			System.exit(1);
 		}
 
 		// hardcoded water block state
@@ -440,27 +1043,99 @@ public class MapConverter {
 		saveImage(image, path);
 	}
 
-	private static BufferedImage loadImage(String path) {
+	private static Dimension getImageSize(String path) {
+		ImageReader reader = getImageReader(path);
+		Dimension size = null;
+		try {
+			size = new Dimension(reader.getWidth(0), reader.getHeight(0));
+		} catch (IOException e) {
+			System.out.println("Something went wrong:");
+			e.printStackTrace();
+			System.exit(1);
+		}
+		reader.dispose();
+		return size;
+	}
+
+	// heap the resizer needs for a region regionWidth pixels wide, see
+	// ImageResizer.getWorkingBytes
+	private static long getResizeBytes(String path, int regionWidth) {
+		ImageReader reader = getImageReader(path);
+		long bytes = 0;
+		try {
+			ImageResizer resizer = new ImageResizer(reader.getWidth(0), reader.getHeight(0), resizeWidth, resizeHeight,
+					resizeFilter, 1);
+			bytes = resizer.getWorkingBytes(regionWidth, ImageResizer.needsWholeSource(reader));
+		} catch (IOException e) {
+			System.out.println("Something went wrong:");
+			e.printStackTrace();
+			System.exit(1);
+		}
+		reader.dispose();
+		return bytes;
+	}
+
+	// region is given in coordinates of the image padded to full 128*128
+	// sections, only this part is decoded. Padding is black.
+	// If resizing, region refers to the resized image and only that part of
+	// it is computed while the image is decoded (see ImageResizer).
+	private static BufferedImage loadImage(String path, Rectangle region) {
 		BufferedImage img = null;
-		File file = new File(path);
+		ImageReader reader = getImageReader(path);
 		try {
-			img = ImageIO.read(file);
-			if (img == null) {
-				System.out.println("Failed to read image. Try with a different image/image format.");
-				System.exit(0);
+			if (resizeWidth > 0) {
+				ImageResizer resizer = new ImageResizer(reader.getWidth(0), reader.getHeight(0), resizeWidth,
+						resizeHeight, resizeFilter, Runtime.getRuntime().availableProcessors());
+				img = resizer.resize(reader, region.intersection(new Rectangle(resizeWidth, resizeHeight)));
+			} else {
+				Rectangle sourceRegion = region.intersection(new Rectangle(reader.getWidth(0), reader.getHeight(0)));
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceRegion(sourceRegion);
+				img = reader.read(0, param);
 			}
 		} catch (IOException e) {
 			System.out.println("Something went wrong:");
 			e.printStackTrace();
-			System.exit(0);
+			System.exit(1);
 		}
+		reader.dispose();
 
-		// ensure proper image type
-		BufferedImage copiedImage = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
+		// ensure proper image type, pad image so we get full 128*128 sections
+		BufferedImage copiedImage = new BufferedImage(region.width, region.height, BufferedImage.TYPE_INT_RGB);
 		copiedImage.getGraphics().drawImage(img, 0, 0, null);
 		return copiedImage;
 	}
 
+	// Pad image so we get full 128*128 sections
+	private static BufferedImage extendImage(BufferedImage image) {
+		int width = (int) (128 * Math.ceil((double) image.getWidth() / 128));
+		int height = (int) (128 * Math.ceil((double) image.getHeight() / 128));
+
+		BufferedImage extendedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		extendedImage.getGraphics().drawImage(image, 0, 0, null);
+		return extendedImage;
+	}
+
+	private static ImageReader getImageReader(String path) {
+		File file = new File(path);
+		try {
+			ImageInputStream iis = ImageIO.createImageInputStream(file);
+			Iterator<ImageReader> readers = iis == null ? null : ImageIO.getImageReaders(iis);
+			if (readers == null || !readers.hasNext()) {
+				System.out.println("Failed to read image. Try with a different image/image format.");
+				System.exit(1);
+			}
+			ImageReader reader = readers.next();
+			reader.setInput(iis, true, true);
+			return reader;
+		} catch (IOException e) {
+			System.out.println("Something went wrong:");
+			e.printStackTrace();
+			System.exit(1);
+			return null;
+		}
+	}
+
 	private static void saveImage(BufferedImage img, String path) {
 		File file = new File(path);
 		try {
@@ -468,7 +1143,7 @@ public class MapConverter {
 		} catch (IOException e) {
 			System.out.println("Something went wrong:");
 			e.printStackTrace();
-			System.exit(0);
+			System.exit(1);
 		}
 	}
 
@@ -488,49 +1163,4 @@ public class MapConverter {
 		return array;
 	}
 
-	// https://en.wikipedia.org/wiki/CIELAB_color_space
-	// http://www.brucelindbloom.com/index.html?Eqn_RGB_to_XYZ.html
-	// http://www.brucelindbloom.com/index.html?Eqn_XYZ_to_Lab.html
-	// https://de.wikipedia.org/wiki/Lab-Farbraum#Umrechnung_von_XYZ_zu_Lab
-	// https://observablehq.com/@mbostock/lab-and-rgb
-	private static int[] rgb2lab(int[] rgb) {
-		double[] values = new double[3];
-		for (int i = 0; i < 3; i++) {
-			double V = rgb[i] / 255.0;
-			double v = Math.pow(V, 2.2);
-			if (V <= 0.04045) {
-				v = V / 12.92;
-			} else {
-				v = Math.pow((V + 0.055) / 1.055, 2.4);
-			}
-			values[i] = v;
-		}
-		double[] XYZ = new double[3];
-		XYZ[0] = 0.4360747 * values[0] + 0.3850649 * values[1] + 0.1430804 * values[2];
-		XYZ[1] = 0.2225045 * values[0] + 0.7168786 * values[1] + 0.0606169 * values[2];
-		XYZ[2] = 0.0139322 * values[0] + 0.0971045 * values[1] + 0.7141733 * values[2];
-
-		XYZ[0] = XYZ[0] / 0.96422;
-		XYZ[1] = XYZ[1] / 1.0;
-		XYZ[2] = XYZ[2] / 0.82521;
-		double[] fVals = new double[3];
-		for (int i = 0; i < 3; i++) {
-			double f;
-			double val = XYZ[i];
-			double valr = val;
-			if (valr > (216.0 / 24389.0)) {
-				f = Math.pow(valr, 1.0 / 3.0);
-			} else {
-				f = ((24389.0 / 27.0) * valr + 16.0) / 116.0;
-			}
-			fVals[i] = f;
-		}
-		// lab values, moved into [0,255]
-		int[] lab = new int[3];
-		lab[0] = (int) (2.55 * (116 * fVals[1] - 16));
-		lab[1] = 128 + (int) (500 * (fVals[0] - fVals[1]));
-		lab[2] = 128 + (int) (200 * (fVals[1] - fVals[2]));
-		return lab;
-	}
-
 }
@@ -0,0 +1,344 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+// Plans how much of a conversion runs at once from the heap each stage needs,
+// so the same -Xmx works for small and huge images: how many sections get
+// terrain generated in parallel, how many reduced sections may wait for that
+// (the band between color reduction and terrain generation) and how many
+// encoded structures for the output threads. If the reduced colors or the
+// color cache wouldn't fit, colors are memory-mapped and the cache limited.
+// While the pipeline runs, the GC MXBeans are watched and fewer sections are
+// generated at once under memory pressure.
+public class MemoryScheduler {
+
+	// heap of one section while its terrain is generated and encoded, most of
+	// it the NBT tags of the structure. measured on 128*128 sections: mixed
+	// colors with support blocks, and only dark water (10 water blocks and
+	// glass below every pixel), the most blocks a section can have.
+	// The structure height doesn't matter, only placed blocks are stored.
+	private static final long SECTION_BYTES = 28L << 20;
+	private static final long WATER_SECTION_BYTES = 96L << 20;
+	// a section waiting for terrain generation, see ColorIndexStore.getSection
+	private static final long QUEUED_SECTION_BYTES = 70L << 10;
+	// an encoded structure waiting to be written, measured 210 to 430 KB
+	private static final long ENCODED_SECTION_BYTES = 512L << 10;
+	// a cached closest color: map entry, Integer key and {colorID, variation}
+	private static final long COLOR_CACHE_ENTRY_BYTES = 80;
+	private static final int MIN_COLOR_CACHE_ENTRIES = 1 << 16;
+	// chunks PngWriter has in flight, compressed and uncompressed
+	private static final long PREVIEW_BYTES = 32L << 20;
+
+	// the rest is left to the GC, which slows down a lot on a full heap
+	private static final double USABLE_HEAP_SHARE = 0.8;
+	private static final int QUEUED_SECTIONS_PER_THREAD = 2;
+	private static final int MAX_QUEUED_WRITES = 64;
+
+	// memory pressure: share of the heap still used after the last
+	// collection, or much time spent in GC while a lot of it is. GC time
+	// alone is mostly a small young generation collecting the garbage of
+	// encoding, fewer threads don't help with that. halve the terrain threads
+	// under pressure, add one back after CALM_SAMPLES samples below the calm
+	// share.
+	private static final long SAMPLE_MILLIS = 500;
+	private static final double LIVE_SHARE_LIMIT = 0.8;
+	private static final double GC_SHARE_LIMIT = 0.2;
+	private static final double LIVE_SHARE_CALM = 0.6;
+	private static final int CALM_SAMPLES = 4;
+	// running sections have to finish before fewer threads show any effect
+	private static final int SAMPLES_BETWEEN_REDUCTIONS = 2;
+
+	// heap used right after the last collection, from its notification, -1
+	// before the first one. see trackCollections()
+	private static volatile long usedAfterGcBytes = -1;
+	private static NotificationListener gcListener = null;
+
+	private int width;
+	private int height;
+	private int cores;
+	private long maxHeapBytes;
+	private long usedBytes;
+	private long usableBytes;
+
+	// estimates per stage. animations load the next frame while the pipeline
+	// still works on the previous one, single images before it gets anything.
+	private boolean animation;
+	private long sectionBytes;
+	private long loadBytes;
+	private long reduceBytes;
+	private long cacheBytes;
+	private long pipelineBytes;
+	private long minNeededBytes;
+
+	// the plan
+	private int terrainThreads;
+	private int queuedSections;
+	private int queuedWrites;
+	private boolean mappedColors;
+	private int colorCacheLimit;
+
+	// monitoring, see watch()
+	private ConversionPipeline pipeline = null;
+	private ScheduledExecutorService monitor = null;
+	private long lastGcMillis;
+	private long lastSampleNanos;
+	private int calmSamples = 0;
+	private int samplesSinceReduction = SAMPLES_BETWEEN_REDUCTIONS;
+
+	// plans the conversion of width * height pixels (full sections, every
+	// frame if animation), resized with resizeBytes of extra heap (see
+	// ImageResizer.getWorkingBytes), 0 if not resized. mappedColors if colors
+	// are memory-mapped already, cacheColors if closest colors are cached per
+	// color and water if water is allowed.
+	public MemoryScheduler(int width, int height, long resizeBytes, boolean animation, boolean mappedColors,
+			boolean cacheColors, boolean water, int cores) {
+		this.width = width;
+		this.height = height;
+		this.cores = cores;
+		this.animation = animation;
+		this.mappedColors = mappedColors;
+		// what's left after the last collection is what's really used, garbage
+		// from startup (e.g. the color table) isn't. without a collection yet
+		// there's little garbage, so everything allocated counts.
+		Runtime runtime = Runtime.getRuntime();
+		maxHeapBytes = runtime.maxMemory();
+		usedBytes = usedAfterGcBytes >= 0 ? usedAfterGcBytes : runtime.totalMemory() - runtime.freeMemory();
+		usableBytes = (long) ((maxHeapBytes - usedBytes) * USABLE_HEAP_SHARE);
+
+		long pixels = (long) width * height;
+		// decoded or resized image and the padded copy, and the resizer's strips
+		loadBytes = pixels * 4 * 2 + resizeBytes;
+
+		// the smallest pipeline: one terrain thread and the submitting thread,
+		// which generates sections itself when the queue is full. water is a
+		// common map color, so with water every section may be full of it.
+		sectionBytes = water ? WATER_SECTION_BYTES : SECTION_BYTES;
+		long minPipelineBytes = 2 * sectionBytes + QUEUED_SECTIONS_PER_THREAD * QUEUED_SECTION_BYTES;
+
+		// image being reduced, reduced colors (the previous frame's too) and
+		// previews, plus at least the smallest color cache
+		long imageBytes = pixels * 4 + Math.min(pixels * 2, PREVIEW_BYTES);
+		long colorBytes = pixels * (animation ? 2 : 1);
+		long minCacheBytes = cacheColors ? MIN_COLOR_CACHE_ENTRIES * COLOR_CACHE_ENTRY_BYTES : 0;
+		if (!mappedColors && getPeakBytes(imageBytes + colorBytes + minCacheBytes, minPipelineBytes) > usableBytes) {
+			this.mappedColors = true;
+		}
+		if (this.mappedColors) {
+			colorBytes = 0;
+		}
+
+		// the smallest plan, memory-mapped colors and one queued write
+		minNeededBytes = getPeakBytes(imageBytes + minCacheBytes, minPipelineBytes + ENCODED_SECTION_BYTES);
+
+		// the pipeline runs while colors are reduced, gets what's left: an
+		// eighth for encoded structures, unless even one terrain thread
+		// wouldn't fit then, the rest for sections being generated
+		long pipelineSpace = Math.max(0, usableBytes - getPeakBytes(imageBytes + colorBytes + minCacheBytes, 0));
+		long writeSpace = Math.min(pipelineSpace / 8, pipelineSpace - minPipelineBytes);
+		queuedWrites = (int) Math.max(1, Math.min(MAX_QUEUED_WRITES, writeSpace / ENCODED_SECTION_BYTES));
+		long sectionSpace = pipelineSpace - queuedWrites * ENCODED_SECTION_BYTES;
+		terrainThreads = (int) Math.max(1, Math.min(cores, sectionSpace / sectionBytes - 1));
+		// a whole row of sections, so reducing the next row doesn't have to
+		// wait for terrain generation, unless that needs too much memory
+		queuedSections = Math.max(terrainThreads * QUEUED_SECTIONS_PER_THREAD, width / 128);
+		queuedSections = (int) Math.max(terrainThreads,
+				Math.min(queuedSections, (sectionSpace - (terrainThreads + 1) * sectionBytes) / QUEUED_SECTION_BYTES));
+		pipelineBytes = (terrainThreads + 1) * sectionBytes + queuedSections * QUEUED_SECTION_BYTES
+				+ queuedWrites * ENCODED_SECTION_BYTES;
+
+		// the cache gets the rest, it can't have more colors than pixels
+		reduceBytes = imageBytes + colorBytes;
+		colorCacheLimit = 0;
+		if (cacheColors) {
+			long cacheSpace = usableBytes - getPeakBytes(reduceBytes, pipelineBytes);
+			colorCacheLimit = (int) Math.max(MIN_COLOR_CACHE_ENTRIES,
+					Math.min(Math.min(pixels, 1 << 24), cacheSpace / COLOR_CACHE_ENTRY_BYTES));
+		}
+		cacheBytes = colorCacheLimit * COLOR_CACHE_ENTRY_BYTES;
+	}
+
+	// most memory used at once while loading and reducing with the pipeline
+	private long getPeakBytes(long reduceBytes, long pipelineBytes) {
+		if (animation) {
+			return Math.max(loadBytes, reduceBytes) + pipelineBytes;
+		}
+		return Math.max(loadBytes, reduceBytes + pipelineBytes);
+	}
+
+	public int getTerrainThreads() {
+		return terrainThreads;
+	}
+
+	public int getQueuedSections() {
+		return queuedSections;
+	}
+
+	public int getQueuedWrites() {
+		return queuedWrites;
+	}
+
+	public boolean isMappingColors() {
+		return mappedColors;
+	}
+
+	// entries the closest color cache may have
+	public int getColorCacheLimit() {
+		return colorCacheLimit;
+	}
+
+	public void printPlan() {
+		System.out.println("Memory plan for " + width + "x" + height + " pixels, " + toMegabytes(maxHeapBytes)
+				+ " MB heap, " + cores + " cores:");
+		System.out.println("\tloading ~" + toMegabytes(loadBytes) + " MB, reducing colors ~" + toMegabytes(reduceBytes)
+				+ " MB (colors " + (mappedColors ? "memory-mapped" : "in heap") + ") and up to "
+				+ toMegabytes(cacheBytes) + " MB to cache " + colorCacheLimit + " colors");
+		System.out.println("\tgenerating terrain ~" + toMegabytes(pipelineBytes) + " MB (~"
+				+ toMegabytes(sectionBytes) + " MB per section, terrain threads: " + terrainThreads
+				+ ", sections queued: " + queuedSections + ", writes queued: " + queuedWrites + ")");
+		if (isOverBudget()) {
+			// threads and queues are at their minimum then, nothing left to
+			// reduce. a heap the smallest plan fits in gets a plan that fits,
+			// plus a tenth: the heap can be a bit smaller than -Xmx (e.g.
+			// without a survivor space)
+			long neededBytes = getPeakBytes(reduceBytes + cacheBytes, pipelineBytes);
+			long neededHeapBytes = (long) ((minNeededBytes / USABLE_HEAP_SHARE + usedBytes) * 1.1);
+			System.out.println("Not enough memory: the plan above needs about " + toMegabytes(neededBytes)
+					+ " MB, but only " + toMegabytes(usableBytes) + " MB of the " + toMegabytes(maxHeapBytes)
+					+ " MB heap are usable.");
+			System.out.println("Converting anyway, this will likely fail with an OutOfMemoryError. Run java with -Xmx"
+					+ (toMegabytes(neededHeapBytes) + 1) + "m or more to be safe.");
+		}
+	}
+
+	// true if even the smallest plan needs more than the usable heap
+	private boolean isOverBudget() {
+		return getPeakBytes(reduceBytes + cacheBytes, pipelineBytes) > usableBytes;
+	}
+
+	// from now on, keeps track of the heap used after every collection. called
+	// at startup, so plans know what's really used without forcing a
+	// collection. the collection usage of the pools isn't enough: with G1, the
+	// old generation's is only updated by full collections. every
+	// collection's notification has the usage of all pools right after it
+	// instead.
+	public static synchronized void trackCollections() {
+		if (gcListener != null) {
+			return;
+		}
+		final HashSet<String> heapPools = new HashSet<String>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				heapPools.add(pool.getName());
+			}
+		}
+		gcListener = new NotificationListener() {
+			public void handleNotification(Notification notification, Object handback) {
+				if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+					return;
+				}
+				GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+						.from((CompositeData) notification.getUserData());
+				long used = 0;
+				for (Map.Entry<String, MemoryUsage> entry : info.getGcInfo().getMemoryUsageAfterGc().entrySet()) {
+					if (heapPools.contains(entry.getKey())) {
+						used += entry.getValue().getUsed();
+					}
+				}
+				usedAfterGcBytes = used;
+			}
+		};
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			if (collector instanceof NotificationEmitter) {
+				((NotificationEmitter) collector).addNotificationListener(gcListener, null, null);
+			}
+		}
+	}
+
+	// adjusts the terrain threads of pipeline to the memory pressure until
+	// stopWatching() is called
+	public void watch(ConversionPipeline pipeline) {
+		this.pipeline = pipeline;
+		trackCollections();
+		lastGcMillis = getGcMillis();
+		lastSampleNanos = System.nanoTime();
+		monitor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "memory monitor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		monitor.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				sample();
+			}
+		}, SAMPLE_MILLIS, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	public void stopWatching() {
+		if (monitor != null) {
+			monitor.shutdownNow();
+			monitor = null;
+		}
+	}
+
+	private void sample() {
+		long gcMillis = getGcMillis();
+		long now = System.nanoTime();
+		double gcShare = (gcMillis - lastGcMillis) * 1e6 / Math.max(1, now - lastSampleNanos);
+		lastGcMillis = gcMillis;
+		lastSampleNanos = now;
+		// no collection yet, no pressure
+		double liveShare = (double) Math.max(0, usedAfterGcBytes) / maxHeapBytes;
+		int threads = pipeline.getTerrainThreads();
+		samplesSinceReduction++;
+		if (liveShare > LIVE_SHARE_LIMIT || (gcShare > GC_SHARE_LIMIT && liveShare > LIVE_SHARE_CALM)) {
+			calmSamples = 0;
+			if (threads > 1 && samplesSinceReduction >= SAMPLES_BETWEEN_REDUCTIONS) {
+				pipeline.setTerrainThreads(threads / 2);
+				samplesSinceReduction = 0;
+				System.out.println("Memory pressure (" + Math.round(gcShare * 100) + "% time in GC, "
+						+ Math.round(liveShare * 100) + "% heap used after GC), terrain threads " + threads + " -> "
+						+ threads / 2);
+			}
+		} else if (liveShare < LIVE_SHARE_CALM) {
+			calmSamples++;
+			if (calmSamples >= CALM_SAMPLES && threads < terrainThreads) {
+				pipeline.setTerrainThreads(threads + 1);
+				calmSamples = 0;
+				System.out.println("Memory pressure gone, terrain threads " + threads + " -> " + (threads + 1));
+			}
+		} else {
+			calmSamples = 0;
+		}
+	}
+
+	// total time all collectors ran so far
+	private static long getGcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, collector.getCollectionTime());
+		}
+		return millis;
+	}
+
+	private static long toMegabytes(long bytes) {
+		return bytes >> 20;
+	}
+
+}
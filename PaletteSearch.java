@@ -0,0 +1,93 @@
+// Finds the closest allowed map color for a LAB color, using the squared
+// CIE76 difference on the integer LAB values from LabConverter.toLab.
+// http://en.wikipedia.org/wiki/Color_difference#CIE76
+// Except it's squared since we only care about relative difference
+// This should be enough for our limited purposes
+//
+// The palette is stored as one float array per channel so the search can be
+// vectorized, see VectorPaletteSearch. Integer LAB values and their squared
+// differences are exact in float, so both give the same results.
+public class PaletteSearch {
+
+	// arrays are padded to a multiple of this, enough for any vector size
+	protected static final int PADDING = 64;
+	// channel value for padding entries, far away from any real color
+	private static final float PADDING_VALUE = 100000;
+
+	// allowed palette colors, padded
+	protected float[] paletteL;
+	protected float[] paletteA;
+	protected float[] paletteB;
+	// colorID * 3 + variation for every allowed palette color
+	protected int[] paletteIndices;
+	// number of allowed palette colors, without padding
+	protected int size;
+
+	public PaletteSearch(int[][][] baseColorsLAB, boolean[][] allowColor) {
+		for (int colorID = 0; colorID < allowColor.length; colorID++) {
+			for (int variation = 0; variation < 3; variation++) {
+				if (allowColor[colorID][variation]) {
+					size++;
+				}
+			}
+		}
+		int paddedSize = (size + PADDING - 1) / PADDING * PADDING;
+		paletteL = new float[paddedSize];
+		paletteA = new float[paddedSize];
+		paletteB = new float[paddedSize];
+		paletteIndices = new int[paddedSize];
+		int i = 0;
+		for (int colorID = 0; colorID < allowColor.length; colorID++) {
+			for (int variation = 0; variation < 3; variation++) {
+				if (allowColor[colorID][variation]) {
+					paletteL[i] = baseColorsLAB[colorID][variation][0];
+					paletteA[i] = baseColorsLAB[colorID][variation][1];
+					paletteB[i] = baseColorsLAB[colorID][variation][2];
+					paletteIndices[i] = colorID * 3 + variation;
+					i++;
+				}
+			}
+		}
+		for (; i < paddedSize; i++) {
+			paletteL[i] = PADDING_VALUE;
+			paletteA[i] = PADDING_VALUE;
+			paletteB[i] = PADDING_VALUE;
+		}
+	}
+
+	// uses the Vector API if it's available, i.e. if vector/ was compiled and
+	// this is run with --add-modules jdk.incubator.vector
+	public static PaletteSearch create(int[][][] baseColorsLAB, boolean[][] allowColor) {
+		if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+			try {
+				return (PaletteSearch) Class.forName("VectorPaletteSearch")
+						.getConstructor(int[][][].class, boolean[][].class).newInstance(baseColorsLAB, allowColor);
+			} catch (Exception e) {
+				// fall back to scalar search below
+			}
+		}
+		return new PaletteSearch(baseColorsLAB, allowColor);
+	}
+
+	// returns colorID * 3 + variation of the closest color, earliest one on ties
+	public int findClosest(int l, int a, int b) {
+		float smallestDifference = Float.MAX_VALUE;
+		int bestMatch = 0;
+		for (int i = 0; i < size; i++) {
+			float dl = l - paletteL[i];
+			float da = a - paletteA[i];
+			float db = b - paletteB[i];
+			float difference = dl * dl + da * da + db * db;
+			if (difference < smallestDifference) {
+				bestMatch = i;
+				smallestDifference = difference;
+			}
+		}
+		return paletteIndices[bestMatch];
+	}
+
+	public String getDescription() {
+		return "scalar";
+	}
+
+}
@@ -0,0 +1,74 @@
+import java.util.Random;
+
+// Compares the scalar and the vectorized closest color search on a full
+// size random palette and checks that both find the same colors.
+// Usage: java --add-modules jdk.incubator.vector PaletteSearchBenchmark
+public class PaletteSearchBenchmark {
+
+	private static final int NUMBER_OF_BASE_COLORS = 61;
+	private static final int QUERIES = 1 << 20;
+	private static final int ROUNDS = 10;
+
+	public static void main(String[] args) {
+		Random random = new Random(0);
+		int[][][] baseColorsLAB = new int[NUMBER_OF_BASE_COLORS][3][3];
+		boolean[][] allowColor = new boolean[NUMBER_OF_BASE_COLORS][3];
+		for (int colorID = 0; colorID < NUMBER_OF_BASE_COLORS; colorID++) {
+			for (int variation = 0; variation < 3; variation++) {
+				for (int channel = 0; channel < 3; channel++) {
+					baseColorsLAB[colorID][variation][channel] = random.nextInt(256);
+				}
+				allowColor[colorID][variation] = true;
+			}
+		}
+		int[][] queries = new int[QUERIES][3];
+		for (int[] query : queries) {
+			for (int channel = 0; channel < 3; channel++) {
+				query[channel] = random.nextInt(256);
+			}
+		}
+
+		PaletteSearch scalar = new PaletteSearch(baseColorsLAB, allowColor);
+		PaletteSearch fastest = PaletteSearch.create(baseColorsLAB, allowColor);
+		for (int[] query : queries) {
+			if (scalar.findClosest(query[0], query[1], query[2]) != fastest
+					.findClosest(query[0], query[1], query[2])) {
+				System.out.println("Mismatch for LAB " + query[0] + " " + query[1] + " " + query[2]);
+				System.exit(1);
+			}
+		}
+
+		double scalarTime = time(scalar, queries);
+		System.out.println("scalar: " + (int) (QUERIES / scalarTime) + " searches/s");
+		if (fastest.getClass() == PaletteSearch.class) {
+			System.out.println("Vector API not available, compile vector/ and run with --add-modules"
+					+ " jdk.incubator.vector (see README.md)");
+			return;
+		}
+		double fastestTime = time(fastest, queries);
+		System.out.println(fastest.getDescription() + ": " + (int) (QUERIES / fastestTime) + " searches/s");
+		System.out.println("speedup: " + Math.round(scalarTime / fastestTime * 100) / 100.0 + "x");
+	}
+
+	// seconds per round, best of ROUNDS after warmup
+	private static double time(PaletteSearch search, int[][] queries) {
+		double best = Double.MAX_VALUE;
+		int checksum = 0;
+		for (int round = 0; round < ROUNDS + 3; round++) {
+			long start = System.nanoTime();
+			for (int[] query : queries) {
+				checksum += search.findClosest(query[0], query[1], query[2]);
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			if (round >= 3) {
+				best = Math.min(best, seconds);
+			}
+		}
+		// keep the JIT from dropping the searches
+		if (checksum == 42) {
+			System.out.println();
+		}
+		return best;
+	}
+
+}
@@ -0,0 +1,179 @@
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+// Closest allowed map color for every possible RGB color, so expensive color
+// difference formulas are only evaluated once instead of per pixel. Tables
+// are cached on disk per metric and palette, so only the first run pays.
+public class PaletteTable {
+
+	private static final int TABLE_SIZE = 256 * 256 * 256;
+	private static final String CACHE_FOLDER = "cache/";
+	// bump when the table contents change for the same metric and palette
+	private static final int FORMAT_VERSION = 2;
+
+	// rgb -> colorID * 3 + variation
+	private byte[] table;
+	// {colorID, variation} for every palette index, shared by all pixels
+	private int[][] matches;
+
+	private PaletteTable(byte[] table, int numberOfBaseColors) {
+		this.table = table;
+		matches = new int[numberOfBaseColors * 3][];
+		for (int i = 0; i < matches.length; i++) {
+			matches[i] = new int[] { i / 3, i % 3 };
+		}
+	}
+
+	// returns {colorIndex, variation}, do not modify
+	public int[] getMatch(int rgb) {
+		return matches[table[rgb & 0xFFFFFF] & 0xFF];
+	}
+
+	// loads the table from the cache or builds and caches it
+	public static PaletteTable getTable(int[][][] baseColorsRGB, boolean[][] allowColor, ColorMetric metric,
+			int threads) {
+		int numberOfBaseColors = baseColorsRGB.length;
+		File cacheFile = new File(CACHE_FOLDER + "colorTable." + metric.toString().toLowerCase() + "."
+				+ getPaletteHash(baseColorsRGB, allowColor) + ".bin");
+		byte[] table = null;
+		if (cacheFile.exists()) {
+			table = new byte[TABLE_SIZE];
+			try {
+				if (cacheFile.length() != TABLE_SIZE) {
+					throw new Exception("wrong length");
+				}
+				DataInputStream dis = new DataInputStream(new FileInputStream(cacheFile));
+				dis.readFully(table);
+				dis.close();
+				for (int i = 0; i < TABLE_SIZE; i++) {
+					if ((table[i] & 0xFF) >= numberOfBaseColors * 3) {
+						throw new Exception("invalid entry");
+					}
+				}
+			} catch (Exception e) {
+				System.out.println("Ignoring invalid color table cache " + cacheFile + ", rebuilding it");
+				table = null;
+			}
+		}
+		if (table == null) {
+			table = buildTable(baseColorsRGB, allowColor, metric, threads);
+			// write to a temp file next to it and move that into place, so
+			// concurrent runs or a crash never leave a half-written table
+			File tempFile = null;
+			try {
+				cacheFile.getParentFile().mkdirs();
+				tempFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheFile.getParentFile());
+				FileOutputStream fos = new FileOutputStream(tempFile);
+				fos.write(table);
+				fos.close();
+				Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (Exception e) {
+				// not fatal, we just have to build it again next time
+				System.out.println("Couldn't cache color table: " + e);
+				if (tempFile != null) {
+					tempFile.delete();
+				}
+			}
+		}
+		return new PaletteTable(table, numberOfBaseColors);
+	}
+
+	private static byte[] buildTable(int[][][] baseColorsRGB, boolean[][] allowColor, final ColorMetric metric,
+			int threads) {
+		// collect allowed palette colors
+		int allowedColors = 0;
+		for (int colorID = 0; colorID < allowColor.length; colorID++) {
+			for (int variation = 0; variation < 3; variation++) {
+				if (allowColor[colorID][variation]) {
+					allowedColors++;
+				}
+			}
+		}
+		final int[] paletteIndices = new int[allowedColors];
+		final double[][] paletteLAB = new double[allowedColors][];
+		int paletteIndex = 0;
+		for (int colorID = 0; colorID < allowColor.length; colorID++) {
+			for (int variation = 0; variation < 3; variation++) {
+				if (allowColor[colorID][variation]) {
+					paletteIndices[paletteIndex] = colorID * 3 + variation;
+					int[] rgb = baseColorsRGB[colorID][variation];
+					paletteLAB[paletteIndex] = new double[3];
+					LabConverter.toLabExact((rgb[0] << 16) | (rgb[1] << 8) | rgb[2], paletteLAB[paletteIndex]);
+					paletteIndex++;
+				}
+			}
+		}
+
+		// one task per red value
+		final byte[] table = new byte[TABLE_SIZE];
+		final AtomicInteger finishedTasks = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		for (int r = 0; r < 256; r++) {
+			final int red = r;
+			executor.execute(new Runnable() {
+				public void run() {
+					double[] lab = new double[3];
+					for (int g = 0; g < 256; g++) {
+						for (int b = 0; b < 256; b++) {
+							LabConverter.toLabExact((red << 16) | (g << 8) | b, lab);
+							double smallestDifference = Double.MAX_VALUE;
+							int bestMatch = 0;
+							for (int i = 0; i < paletteLAB.length; i++) {
+								double difference = metric.difference(lab, paletteLAB[i]);
+								if (difference < smallestDifference) {
+									bestMatch = paletteIndices[i];
+									smallestDifference = difference;
+								}
+							}
+							table[(red << 16) | (g << 8) | b] = (byte) bestMatch;
+						}
+					}
+					// Percent counter
+					int finished = finishedTasks.incrementAndGet();
+					int percent = finished * 100 / 256;
+					if (percent / 5 != (finished - 1) * 100 / 256 / 5) {
+						System.out.print(percent + "% ");
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			System.out.println("Something went wrong:");
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.out.println();
+		return table;
+	}
+
+	// identifies the allowed palette colors, and with it the table contents
+	private static String getPaletteHash(int[][][] baseColorsRGB, boolean[][] allowColor) {
+		CRC32 crc = new CRC32();
+		crc.update(FORMAT_VERSION);
+		for (int colorID = 0; colorID < allowColor.length; colorID++) {
+			for (int variation = 0; variation < 3; variation++) {
+				if (allowColor[colorID][variation]) {
+					crc.update(colorID);
+					crc.update(variation);
+					for (int channel = 0; channel < 3; channel++) {
+						crc.update(baseColorsRGB[colorID][variation][channel]);
+					}
+				}
+			}
+		}
+		return Long.toHexString(crc.getValue());
+	}
+
+}
@@ -0,0 +1,210 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// Writes a PNG row by row, so the image never has to be in memory as a whole.
+// Rows are compressed in chunks, in parallel if an executor is given: every
+// chunk is deflated on its own with the end of the previous chunk as
+// dictionary and ends byte aligned, so the pieces simply concatenate into one
+// zlib stream (like pigz does). Every chunk becomes one IDAT.
+// http://www.libpng.org/pub/png/spec/1.2/PNG-Contents.html
+public class PngWriter {
+
+	private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+	// uncompressed bytes per chunk
+	private static final int CHUNK_BYTES = 1 << 20;
+	// deflate window, the dictionary handed to the next chunk
+	private static final int WINDOW_BYTES = 1 << 15;
+	// compressed chunks waiting to be written before new ones have to wait
+	private static final int MAX_PENDING_CHUNKS = 16;
+
+	private DataOutputStream out;
+	private int rowBytes;
+	private int rowsLeft;
+	private ExecutorService executor;
+
+	// uncompressed data of the chunk being filled, filter byte per row
+	private byte[] chunk;
+	private int chunkFill = 0;
+	private byte[] previousChunk = null;
+	private ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+	private ArrayDeque<byte[]> pendingInputs = new ArrayDeque<byte[]>();
+	private Adler32 adler = new Adler32();
+	private boolean firstData = true;
+
+	// palette is {r, g, b} per index for an 8 bit indexed image, null for an
+	// RGB image. executor may be null to compress on the writing thread.
+	public PngWriter(String fileName, int width, int height, int[][] palette, ExecutorService executor)
+			throws IOException {
+		this.executor = executor;
+		rowBytes = palette != null ? width : width * 3;
+		rowsLeft = height;
+		int chunkRows = Math.max(1, Math.min(height, CHUNK_BYTES / (rowBytes + 1)));
+		chunk = new byte[chunkRows * (rowBytes + 1)];
+
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(fileName)), 1 << 16));
+		out.write(SIGNATURE);
+		ByteBuffer header = ByteBuffer.allocate(13);
+		header.putInt(width);
+		header.putInt(height);
+		header.put((byte) 8); // bit depth
+		header.put((byte) (palette != null ? 3 : 2)); // indexed or RGB
+		header.put((byte) 0); // compression
+		header.put((byte) 0); // filter method
+		header.put((byte) 0); // no interlace
+		writeChunk("IHDR", header.array());
+		if (palette != null) {
+			byte[] paletteBytes = new byte[palette.length * 3];
+			for (int i = 0; i < palette.length; i++) {
+				for (int channel = 0; channel < 3; channel++) {
+					paletteBytes[i * 3 + channel] = (byte) palette[i][channel];
+				}
+			}
+			writeChunk("PLTE", paletteBytes);
+		}
+	}
+
+	// rows * (width or width * 3) bytes from pixels[offset], rows in order
+	public void writeRows(byte[] pixels, int offset, int rows) throws IOException {
+		if (rows > rowsLeft) {
+			throw new IOException("More rows than the image has");
+		}
+		rowsLeft -= rows;
+		for (int row = 0; row < rows; row++) {
+			// filter type none, map colors don't gain from filtering
+			chunk[chunkFill] = 0;
+			System.arraycopy(pixels, offset + row * rowBytes, chunk, chunkFill + 1, rowBytes);
+			chunkFill += rowBytes + 1;
+			if (chunkFill == chunk.length) {
+				submitChunk();
+			}
+		}
+	}
+
+	// writes the end of the image, all rows must have been written
+	public void close() throws IOException {
+		if (rowsLeft > 0) {
+			throw new IOException("Image incomplete, " + rowsLeft + " rows missing");
+		}
+		if (chunkFill > 0) {
+			submitChunk();
+		}
+		while (!pending.isEmpty()) {
+			writeOldestChunk();
+		}
+		// empty final block, then the checksum of all uncompressed data
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		deflater.finish();
+		byte[] end = new byte[16];
+		int length = deflater.deflate(end);
+		deflater.end();
+		long checksum = adler.getValue();
+		end[length++] = (byte) (checksum >> 24);
+		end[length++] = (byte) (checksum >> 16);
+		end[length++] = (byte) (checksum >> 8);
+		end[length++] = (byte) checksum;
+		byte[] data = new byte[length];
+		System.arraycopy(end, 0, data, 0, length);
+		writeChunk("IDAT", data);
+		writeChunk("IEND", new byte[0]);
+		out.close();
+	}
+
+	private void submitChunk() throws IOException {
+		final byte[] input = chunkFill == chunk.length ? chunk : Arrays.copyOf(chunk, chunkFill);
+		final byte[] dictionary = previousChunk;
+		Callable<byte[]> compression = new Callable<byte[]>() {
+			public byte[] call() {
+				return compress(input, dictionary);
+			}
+		};
+		Future<byte[]> future;
+		if (executor != null) {
+			future = executor.submit(compression);
+		} else {
+			FutureTask<byte[]> task = new FutureTask<byte[]>(compression);
+			task.run();
+			future = task;
+		}
+		pending.add(future);
+		pendingInputs.add(input);
+		previousChunk = input;
+		chunk = new byte[chunk.length];
+		chunkFill = 0;
+
+		// write what's done, wait if too much is in flight
+		while (!pending.isEmpty() && (pending.peek().isDone() || pending.size() > MAX_PENDING_CHUNKS)) {
+			writeOldestChunk();
+		}
+	}
+
+	private void writeOldestChunk() throws IOException {
+		byte[] compressed;
+		try {
+			compressed = pending.poll().get();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+		adler.update(pendingInputs.poll());
+		if (firstData) {
+			// zlib header: deflate, 32K window, default compression
+			byte[] withHeader = new byte[compressed.length + 2];
+			withHeader[0] = 0x78;
+			withHeader[1] = (byte) 0x9C;
+			System.arraycopy(compressed, 0, withHeader, 2, compressed.length);
+			compressed = withHeader;
+			firstData = false;
+		}
+		writeChunk("IDAT", compressed);
+	}
+
+	// raw deflate data ending on a byte boundary, not the final block
+	private static byte[] compress(byte[] input, byte[] dictionary) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		if (dictionary != null) {
+			int length = Math.min(WINDOW_BYTES, dictionary.length);
+			deflater.setDictionary(dictionary, dictionary.length - length, length);
+		}
+		deflater.setInput(input);
+		byte[] buffer = new byte[input.length / 2 + 1024];
+		int length = 0;
+		while (true) {
+			length += deflater.deflate(buffer, length, buffer.length - length, Deflater.SYNC_FLUSH);
+			if (length < buffer.length) {
+				// output space left over, so everything is flushed
+				break;
+			}
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+		}
+		deflater.end();
+		return Arrays.copyOf(buffer, length);
+	}
+
+	private void writeChunk(String type, byte[] data) throws IOException {
+		byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data);
+		out.writeInt(data.length);
+		out.write(typeBytes);
+		out.write(data);
+		out.writeInt((int) crc.getValue());
+	}
+
+}
@@ -0,0 +1,140 @@
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Writes the output previews from the reduced colors while the image is
+// still being reduced, one row of sections at a time: the complete image as
+// indexed PNG, optionally a downscaled copy and single sections. Compression
+// runs on its own threads, see PngWriter.
+public class PreviewWriter {
+
+	private ExecutorService executor;
+	private int width;
+	private int[][] palette;
+	private int[][][] baseColorsRGB;
+
+	// null if not written
+	private PngWriter fullWriter = null;
+	private PngWriter scaledWriter = null;
+	private int scale;
+	private String sectionFilePrefix;
+
+	// fullFileName, scaledFileName and sectionFilePrefix may be null to skip
+	// these previews. scale has to divide 128.
+	public PreviewWriter(String fullFileName, String scaledFileName, int scale, String sectionFilePrefix, int width,
+			int height, int[][][] baseColorsRGB, int threads) {
+		this.width = width;
+		this.scale = scale;
+		this.sectionFilePrefix = sectionFilePrefix;
+		this.baseColorsRGB = baseColorsRGB;
+		executor = Executors.newFixedThreadPool(threads);
+		// index colorID * 3 + variation, like the color store
+		palette = new int[baseColorsRGB.length * 3][];
+		for (int colorID = 0; colorID < baseColorsRGB.length; colorID++) {
+			for (int variation = 0; variation < 3; variation++) {
+				palette[colorID * 3 + variation] = baseColorsRGB[colorID][variation];
+			}
+		}
+		try {
+			if (fullFileName != null) {
+				fullWriter = new PngWriter(fullFileName, width, height, palette, executor);
+			}
+			if (scaledFileName != null) {
+				scaledWriter = new PngWriter(scaledFileName, width / scale, height / scale, null, executor);
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	// rows of sections have to come in order, top to bottom
+	public void addSectionRow(ColorIndexStore colors, int j) {
+		byte[] rows = new byte[width * 128];
+		colors.getRows(j * 128, 128, rows);
+		try {
+			if (fullWriter != null) {
+				fullWriter.writeRows(rows, 0, 128);
+			}
+			if (scaledWriter != null) {
+				byte[] scaledRows = downscale(rows);
+				scaledWriter.writeRows(scaledRows, 0, 128 / scale);
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	// writes section i.j as <sectionFilePrefix><sectionName>.png in the
+	// background
+	public void addSection(ColorIndexStore colors, int i, int j, String sectionName) {
+		if (sectionFilePrefix == null) {
+			return;
+		}
+		final String fileName = sectionFilePrefix + sectionName + ".png";
+		final byte[] section = new byte[128 * 128];
+		int[][][] subMatrix = colors.getSection(i, j);
+		for (int y = 0; y < 128; y++) {
+			for (int x = 0; x < 128; x++) {
+				section[y * 128 + x] = (byte) (subMatrix[x][y][0] * 3 + subMatrix[x][y][1]);
+			}
+		}
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					PngWriter writer = new PngWriter(fileName, 128, 128, palette, null);
+					writer.writeRows(section, 0, 128);
+					writer.close();
+				} catch (Throwable t) {
+					fail(t);
+				}
+			}
+		});
+	}
+
+	// waits for all previews to be written
+	public void close() {
+		try {
+			if (fullWriter != null) {
+				fullWriter.close();
+			}
+			if (scaledWriter != null) {
+				scaledWriter.close();
+			}
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+		} catch (Exception e) {
+			fail(e);
+		}
+	}
+
+	// average of every scale * scale block, as RGB
+	private byte[] downscale(byte[] rows) {
+		int scaledWidth = width / scale;
+		int scaledRows = 128 / scale;
+		int[] sums = new int[scaledWidth * scaledRows * 3];
+		for (int y = 0; y < 128; y++) {
+			for (int x = 0; x < width; x++) {
+				int index = rows[y * width + x] & 0xFF;
+				int[] rgb = baseColorsRGB[index / 3][index % 3];
+				int sum = ((y / scale) * scaledWidth + x / scale) * 3;
+				sums[sum] += rgb[0];
+				sums[sum + 1] += rgb[1];
+				sums[sum + 2] += rgb[2];
+			}
+		}
+		byte[] scaled = new byte[sums.length];
+		int pixels = scale * scale;
+		for (int k = 0; k < sums.length; k++) {
+			scaled[k] = (byte) ((sums[k] + pixels / 2) / pixels);
+		}
+		return scaled;
+	}
+
+	private static void fail(Throwable t) {
+		System.out.println("Something went wrong:");
+		t.printStackTrace();
+		System.exit(1);
+	}
+
+}
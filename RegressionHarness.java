@@ -0,0 +1,339 @@
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.jnbt.CompoundTag;
+import org.jnbt.IntTag;
+import org.jnbt.ListTag;
+import org.jnbt.NBTInputStream;
+import org.jnbt.StringTag;
+import org.jnbt.Tag;
+
+// End-to-end regression check: converts a fixed set of synthetic images in
+// every mode, with and without dithering, and compares hashes of the reduced
+// colors, the preview and the decoded structure blocks against a recorded
+// baseline. Throughput is recorded too, but only compared if asked for: it
+// depends on the machine, and for small images mostly measures JVM startup.
+//
+// Usage: java RegressionHarness record|check [--sizes 128,512] [--baseline file]
+//		[--throughput]
+//   record	run everything and save the results as the new baseline
+//   check	run everything, exit with 1 if any output differs from the baseline.
+//		without --sizes, the sizes in the baseline are checked. with
+//		--throughput, also if the throughput of images larger than 1024
+//		pixels dropped more than 20% below the baseline's, only useful on
+//		the machine that recorded it.
+// Run from the folder with config.txt. JVM options like -Xmx given to the
+// harness are passed on to the conversions, which run as separate processes.
+public class RegressionHarness {
+
+	private static final int[] DEFAULT_SIZES = { 128, 512, 2048, 8192 };
+	// allowed throughput drop before check fails
+	private static final double THROUGHPUT_TOLERANCE = 0.2;
+	// images up to this size are converted SMALL_IMAGE_RUNS times
+	private static final int SMALL_IMAGE_SIZE = 1024;
+	private static final int SMALL_IMAGE_RUNS = 3;
+	private static final String DEFAULT_BASELINE = "regression-baseline.txt";
+	private static final String WORK_FOLDER = "regression-work/";
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1 || !(args[0].equals("record") || args[0].equals("check"))) {
+			System.out.println(
+					"Usage: java RegressionHarness record|check [--sizes 128,512] [--baseline file] [--throughput]");
+			System.exit(1);
+		}
+		boolean record = args[0].equals("record");
+		int[] sizes = null;
+		String baselinePath = DEFAULT_BASELINE;
+		boolean checkThroughput = Arrays.asList(args).contains("--throughput");
+		for (int i = 1; i < args.length - 1; i++) {
+			if (args[i].equals("--sizes")) {
+				String[] sizeStrings = args[i + 1].split(",");
+				sizes = new int[sizeStrings.length];
+				for (int k = 0; k < sizes.length; k++) {
+					sizes[k] = Integer.parseInt(sizeStrings[k]);
+				}
+			}
+			if (args[i].equals("--baseline")) {
+				baselinePath = args[i + 1];
+			}
+		}
+
+		Map<String, String[]> baseline = record ? null : readBaseline(baselinePath);
+		if (sizes == null) {
+			sizes = record ? DEFAULT_SIZES : getSizes(baseline);
+		}
+		Map<String, String[]> results = new LinkedHashMap<String, String[]>();
+		boolean failed = false;
+		for (int size : sizes) {
+			String imagePath = WORK_FOLDER + "input." + size + ".png";
+			createImage(size, imagePath);
+			for (MapConverter.Mode mode : MapConverter.Mode.values()) {
+				for (boolean dithering : new boolean[] { true, false }) {
+					String caseName = size + "." + mode.toString().toLowerCase() + "."
+							+ (dithering ? "dither" : "nodither");
+					String[] result = runCase(imagePath, size, mode, dithering);
+					results.put(caseName, result);
+					String problems = record ? "" : compare(baseline.get(caseName), result,
+							checkThroughput && size > SMALL_IMAGE_SIZE);
+					System.out.println(caseName + ": " + result[3] + " pixels/s, " + result[4] + " sections/s"
+							+ (problems.isEmpty() ? "" : " FAILED:" + problems));
+					failed |= !problems.isEmpty();
+				}
+			}
+		}
+
+		if (record) {
+			writeBaseline(baselinePath, results);
+			System.out.println("Baseline saved as " + baselinePath);
+		} else if (failed) {
+			System.out.println("Regression check failed.");
+			System.exit(1);
+		} else {
+			System.out.println("Regression check passed.");
+		}
+	}
+
+	// returns {colorHash, previewHash, blocksHash, pixelsPerSecond, sectionsPerSecond}
+	private static String[] runCase(String imagePath, int size, MapConverter.Mode mode, boolean dithering)
+			throws Exception {
+		String outPath = WORK_FOLDER + "out/";
+		ArrayList<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("MapConverter");
+		command.addAll(Arrays.asList(imagePath, outPath, "--mode", mode.toString(), "--write-colors"));
+		if (!dithering) {
+			command.add("--nodither");
+		}
+
+		// small images are dominated by JVM startup, take the fastest of a few runs
+		int runs = size <= SMALL_IMAGE_SIZE ? SMALL_IMAGE_RUNS : 1;
+		double seconds = Double.MAX_VALUE;
+		String[] hashes = null;
+		for (int run = 0; run < runs; run++) {
+			deleteRecursively(new File(outPath));
+			ProcessBuilder builder = new ProcessBuilder(command);
+			builder.redirectErrorStream(true);
+			builder.redirectOutput(new File(WORK_FOLDER + "log.txt"));
+			long start = System.nanoTime();
+			int exitCode = builder.start().waitFor();
+			seconds = Math.min(seconds, (System.nanoTime() - start) / 1e9);
+			if (exitCode != 0 || !new File(outPath + "colors.bin").exists()) {
+				throw new IOException("Conversion failed, see " + WORK_FOLDER + "log.txt");
+			}
+			String[] runHashes = { hashFile(outPath + "colors.bin"), hashPreview(outPath + "completeImage.png"),
+					hashStructures(outPath + "structure/") };
+			if (hashes != null && !Arrays.equals(hashes, runHashes)) {
+				throw new IOException("Output differs between runs of the same conversion");
+			}
+			hashes = runHashes;
+		}
+
+		int sections = (size / 128) * (size / 128);
+		return new String[] { hashes[0], hashes[1], hashes[2], Long.toString(Math.round(size * (double) size / seconds)),
+				Double.toString(Math.round(sections / seconds * 100) / 100.0) };
+	}
+
+	// returns a description of all differences, empty if there are none
+	private static String compare(String[] expected, String[] actual, boolean checkThroughput) {
+		if (expected == null) {
+			return " not in baseline";
+		}
+		String problems = "";
+		String[] names = { "colors", "preview", "structures" };
+		for (int i = 0; i < names.length; i++) {
+			if (!expected[i].equals(actual[i])) {
+				problems += " " + names[i] + " changed";
+			}
+		}
+		if (checkThroughput && Long.parseLong(actual[3]) < Long.parseLong(expected[3]) * (1 - THROUGHPUT_TOLERANCE)) {
+			problems += " throughput dropped from " + expected[3] + " pixels/s";
+		}
+		return problems;
+	}
+
+	// deterministic mix of gradients, hard edges and noise
+	private static void createImage(int size, String path) throws IOException {
+		if (new File(path).exists()) {
+			return;
+		}
+		new File(path).getParentFile().mkdirs();
+		Random random = new Random(size);
+		BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				int r = x * 255 / size;
+				int g = y * 255 / size;
+				int b = ((x / 32 + y / 32) % 2) * 160 + random.nextInt(64);
+				image.setRGB(x, y, (r << 16) | (g << 8) | b);
+			}
+		}
+		ImageIO.write(image, "png", new File(path));
+	}
+
+	private static String hashFile(String path) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		InputStream is = new FileInputStream(path);
+		byte[] buffer = new byte[1 << 16];
+		int read;
+		while ((read = is.read(buffer)) > 0) {
+			digest.update(buffer, 0, read);
+		}
+		is.close();
+		return toHex(digest.digest());
+	}
+
+	// hash of the pixels, the PNG encoding itself may change
+	private static String hashPreview(String path) throws Exception {
+		BufferedImage image = ImageIO.read(new File(path));
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		int[] row = new int[image.getWidth()];
+		for (int y = 0; y < image.getHeight(); y++) {
+			image.getRGB(0, y, image.getWidth(), 1, row, 0, row.length);
+			for (int rgb : row) {
+				digest.update((byte) (rgb >> 16));
+				digest.update((byte) (rgb >> 8));
+				digest.update((byte) rgb);
+			}
+		}
+		return toHex(digest.digest());
+	}
+
+	// hash of the placed blocks of all structure files, independent of block
+	// order, palette order and file encoding
+	private static String hashStructures(String folder) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		String[] fileNames = new File(folder).list();
+		Arrays.sort(fileNames);
+		for (String fileName : fileNames) {
+			digest.update(fileName.getBytes("UTF-8"));
+			for (String block : readBlocks(new FileInputStream(folder + fileName))) {
+				digest.update(block.getBytes("UTF-8"));
+			}
+		}
+		return toHex(digest.digest());
+	}
+
+	// "x y z blockState" for every block, sorted; also used to compare
+	// structure files elsewhere
+	static List<String> readBlocks(InputStream structureFile) throws IOException {
+		NBTInputStream nis = new NBTInputStream(structureFile);
+		CompoundTag structure = (CompoundTag) nis.readTag();
+		nis.close();
+
+		ArrayList<String> palette = new ArrayList<String>();
+		for (Tag stateTag : ((ListTag) structure.getValue().get("palette")).getValue()) {
+			Map<String, Tag> state = ((CompoundTag) stateTag).getValue();
+			String blockState = ((StringTag) state.get("Name")).getValue();
+			if (state.containsKey("Properties")) {
+				ArrayList<String> properties = new ArrayList<String>();
+				for (Tag property : ((CompoundTag) state.get("Properties")).getValue().values()) {
+					properties.add(property.getName() + "=" + ((StringTag) property).getValue());
+				}
+				Collections.sort(properties);
+				blockState += properties;
+			}
+			palette.add(blockState);
+		}
+		ArrayList<String> blocks = new ArrayList<String>();
+		ListTag size = (ListTag) structure.getValue().get("size");
+		blocks.add("size " + ((IntTag) size.getValue().get(0)).getValue() + " "
+				+ ((IntTag) size.getValue().get(1)).getValue() + " " + ((IntTag) size.getValue().get(2)).getValue());
+		for (Tag blockTag : ((ListTag) structure.getValue().get("blocks")).getValue()) {
+			Map<String, Tag> block = ((CompoundTag) blockTag).getValue();
+			List<Tag> pos = ((ListTag) block.get("pos")).getValue();
+			blocks.add(((IntTag) pos.get(0)).getValue() + " " + ((IntTag) pos.get(1)).getValue() + " "
+					+ ((IntTag) pos.get(2)).getValue() + " "
+					+ palette.get(((IntTag) block.get("state")).getValue()));
+		}
+		Collections.sort(blocks);
+		return blocks;
+	}
+
+	private static Map<String, String[]> readBaseline(String path) throws IOException {
+		Map<String, String[]> baseline = new LinkedHashMap<String, String[]>();
+		if (!new File(path).exists()) {
+			System.out.println("No baseline " + path + ", create one with: java RegressionHarness record");
+			System.exit(1);
+		}
+		BufferedReader br = new BufferedReader(new FileReader(path));
+		String line = br.readLine();
+		while (line != null) {
+			if (!line.startsWith("#") && !line.isEmpty()) {
+				String[] fields = line.split("\t");
+				baseline.put(fields[0], Arrays.copyOfRange(fields, 1, fields.length));
+			}
+			line = br.readLine();
+		}
+		br.close();
+		return baseline;
+	}
+
+	// sizes of all cases in the baseline, in order
+	private static int[] getSizes(Map<String, String[]> baseline) {
+		ArrayList<Integer> sizeList = new ArrayList<Integer>();
+		for (String caseName : baseline.keySet()) {
+			int size = Integer.parseInt(caseName.substring(0, caseName.indexOf('.')));
+			if (!sizeList.contains(size)) {
+				sizeList.add(size);
+			}
+		}
+		int[] sizes = new int[sizeList.size()];
+		for (int k = 0; k < sizes.length; k++) {
+			sizes[k] = sizeList.get(k);
+		}
+		return sizes;
+	}
+
+	private static void writeBaseline(String path, Map<String, String[]> results) throws IOException {
+		Writer writer = new FileWriter(new File(path));
+		writer.write("# case\tcolors\tpreview\tstructures\tpixels/s\tsections/s\n");
+		for (Map.Entry<String, String[]> entry : results.entrySet()) {
+			writer.write(entry.getKey());
+			for (String field : entry.getValue()) {
+				writer.write("\t" + field);
+			}
+			writer.write("\n");
+		}
+		writer.close();
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	private static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+
+}
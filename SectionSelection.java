@@ -0,0 +1,97 @@
+import java.util.ArrayList;
+
+// Sections to convert, given as comma separated list of single sections
+// "i.j" and inclusive rectangles "i1.j1-i2.j2", e.g. "3.7,0.0-2.1".
+public class SectionSelection {
+
+	// inclusive rectangles {minI, minJ, maxI, maxJ}, single sections included
+	private ArrayList<int[]> rectangles = new ArrayList<int[]>();
+
+	// returns null if the selection can't be parsed
+	public static SectionSelection parse(String selectionString) {
+		SectionSelection selection = new SectionSelection();
+		try {
+			for (String part : selectionString.replace(" ", "").split(",")) {
+				String[] corners = part.split("-");
+				if (corners.length > 2) {
+					return null;
+				}
+				int[] from = parseSection(corners[0]);
+				int[] to = corners.length == 2 ? parseSection(corners[1]) : from;
+				if (from == null || to == null) {
+					return null;
+				}
+				selection.rectangles.add(new int[] { Math.min(from[0], to[0]), Math.min(from[1], to[1]),
+						Math.max(from[0], to[0]), Math.max(from[1], to[1]) });
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return selection;
+	}
+
+	private static int[] parseSection(String section) {
+		String[] indices = section.split("\\.");
+		if (indices.length != 2) {
+			return null;
+		}
+		int i = Integer.parseInt(indices[0]);
+		int j = Integer.parseInt(indices[1]);
+		if (i < 0 || j < 0) {
+			return null;
+		}
+		return new int[] { i, j };
+	}
+
+	// inclusive rectangle of sections
+	public void add(int minI, int minJ, int maxI, int maxJ) {
+		rectangles.add(new int[] { minI, minJ, maxI, maxJ });
+	}
+
+	public boolean isEmpty() {
+		return rectangles.isEmpty();
+	}
+
+	public boolean contains(int i, int j) {
+		for (int[] rectangle : rectangles) {
+			if (i >= rectangle[0] && j >= rectangle[1] && i <= rectangle[2] && j <= rectangle[3]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// bounding box of all selected sections, inclusive
+	public int getMinI() {
+		int minI = Integer.MAX_VALUE;
+		for (int[] rectangle : rectangles) {
+			minI = Math.min(minI, rectangle[0]);
+		}
+		return minI;
+	}
+
+	public int getMinJ() {
+		int minJ = Integer.MAX_VALUE;
+		for (int[] rectangle : rectangles) {
+			minJ = Math.min(minJ, rectangle[1]);
+		}
+		return minJ;
+	}
+
+	public int getMaxI() {
+		int maxI = 0;
+		for (int[] rectangle : rectangles) {
+			maxI = Math.max(maxI, rectangle[2]);
+		}
+		return maxI;
+	}
+
+	public int getMaxJ() {
+		int maxJ = 0;
+		for (int[] rectangle : rectangles) {
+			maxJ = Math.max(maxJ, rectangle[3]);
+		}
+		return maxJ;
+	}
+
+}
@@ -0,0 +1,229 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+// What one shard of a conversion split with --shard k/n wrote:
+// shard.<k>of<n>.json with the structure of every section (a file, or a
+// structure in the shard's datapack). It's written last, so it also marks
+// the shard as done. merge() combines the shards of an output folder into
+// manifest.json, materials.csv/.json and, for datapacks, one zip. The shard
+// manifests and the shards' materials.json are read back with Json.
+public class ShardManifest {
+
+	private static final Pattern FILE_NAME = Pattern.compile("shard\\.(\\d+)of(\\d+)\\.json");
+
+	// 1 to shards
+	private int shard;
+	private int shards;
+	// namespace if structures are in a datapack, null if in files
+	private String datapackNamespace;
+	// section name -> structure file or datapack structure, in order
+	private LinkedHashMap<String, String> sections = new LinkedHashMap<String, String>();
+
+	public ShardManifest(int shard, int shards, String datapackNamespace) {
+		this.shard = shard;
+		this.shards = shards;
+		this.datapackNamespace = datapackNamespace;
+	}
+
+	// name of the files of shard k of n, e.g. "shard.2of4"
+	public static String getName(int shard, int shards) {
+		return "shard." + shard + "of" + shards;
+	}
+
+	public void addSection(String sectionName, String structure) {
+		sections.put(sectionName, structure);
+	}
+
+	public void writeToFile(String folder) {
+		try {
+			write(folder + getName(shard, shards) + ".json");
+		} catch (IOException e) {
+			System.out.println("Something went wrong:");
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	// the merged manifest has no shard number
+	private void write(String fileName) throws IOException {
+		Writer json = new FileWriter(new File(fileName));
+		json.write("{\n");
+		if (shard > 0) {
+			json.write("\t\"shard\": " + shard + ",\n");
+		}
+		json.write("\t\"shards\": " + shards + ",\n");
+		if (datapackNamespace != null) {
+			json.write("\t\"datapack\": " + Json.quote(datapackNamespace) + ",\n");
+		}
+		json.write("\t\"sections\": {");
+		boolean first = true;
+		for (Map.Entry<String, String> entry : sections.entrySet()) {
+			json.write(first ? "\n" : ",\n");
+			json.write("\t\t" + Json.quote(entry.getKey()) + ": " + Json.quote(entry.getValue()));
+			first = false;
+		}
+		json.write("\n\t}\n}\n");
+		json.close();
+	}
+
+	// a manifest written by writeToFile, an IOException if it isn't one
+	private static ShardManifest readFromFile(File file) throws IOException {
+		Object json = Json.read(file);
+		ShardManifest manifest = new ShardManifest((int) Json.getNumber(json, "shard"),
+				(int) Json.getNumber(json, "shards"), Json.getString(json, "datapack"));
+		for (Map.Entry<?, ?> entry : Json.getObject(json, "sections").entrySet()) {
+			if (!(entry.getValue() instanceof String)) {
+				throw new IOException("No structure for section " + entry.getKey() + " in " + file.getName());
+			}
+			manifest.sections.put((String) entry.getKey(), (String) entry.getValue());
+		}
+		return manifest;
+	}
+
+	// combines all shards in folder, which all need to be done
+	public static void merge(String folder) {
+		try {
+			// find all manifests, they all have to agree on the shard count
+			TreeMap<Integer, ShardManifest> manifests = new TreeMap<Integer, ShardManifest>();
+			int shards = 0;
+			File[] files = new File(folder).listFiles();
+			for (File file : files == null ? new File[0] : files) {
+				Matcher matcher = FILE_NAME.matcher(file.getName());
+				if (!matcher.matches()) {
+					continue;
+				}
+				ShardManifest manifest = null;
+				try {
+					manifest = readFromFile(file);
+				} catch (IOException e) {
+					System.out.println("Can't read " + file.getName() + " (" + e.getMessage() + "), run shard "
+							+ matcher.group(1) + " again.");
+					System.exit(1);
+				}
+				if (shards != 0 && manifest.shards != shards) {
+					System.out.println("Shards of different conversions (" + shards + " and " + manifest.shards
+							+ " shards) in " + folder + ", remove the old ones.");
+					System.exit(1);
+				}
+				shards = manifest.shards;
+				manifests.put(manifest.shard, manifest);
+			}
+			if (shards == 0) {
+				System.out.println("No shards in " + folder);
+				System.exit(1);
+			}
+			if (manifests.size() < shards) {
+				String missing = "";
+				for (int shard = 1; shard <= shards; shard++) {
+					if (!manifests.containsKey(shard)) {
+						missing += " " + shard;
+					}
+				}
+				System.out.println("Shards not done yet:" + missing);
+				System.exit(1);
+			}
+
+			// sections and their block counts, row by row like without shards
+			ShardManifest merged = new ShardManifest(0, shards, manifests.firstEntry().getValue().datapackNamespace);
+			HashMap<String, String> structures = new HashMap<String, String>();
+			ArrayList<String> sectionNames = new ArrayList<String>();
+			HashMap<String, BillOfMaterials> sectionMaterials = new HashMap<String, BillOfMaterials>();
+			for (ShardManifest manifest : manifests.values()) {
+				structures.putAll(manifest.sections);
+				// the report has to have exactly the sections of the manifest,
+				// anything else is left from another conversion or broken
+				String materialsName = "materials." + getName(manifest.shard, shards);
+				ArrayList<String> shardSectionNames = new ArrayList<String>();
+				try {
+					BillOfMaterials.readSections(folder + materialsName, shardSectionNames, sectionMaterials);
+				} catch (IOException e) {
+					System.out.println("Can't read " + materialsName + ".json (" + e.getMessage() + "), run shard "
+							+ manifest.shard + " again.");
+					System.exit(1);
+				}
+				String missing = "";
+				for (String sectionName : manifest.sections.keySet()) {
+					if (!shardSectionNames.contains(sectionName)) {
+						missing += " " + sectionName;
+					}
+				}
+				String unknown = "";
+				for (String sectionName : shardSectionNames) {
+					if (!manifest.sections.containsKey(sectionName)) {
+						unknown += " " + sectionName;
+					}
+				}
+				if (!missing.isEmpty() || !unknown.isEmpty()) {
+					System.out.println("Sections of shard " + manifest.shard + " don't match " + materialsName
+							+ ".json (missing:" + (missing.isEmpty() ? " none" : missing) + ", not in the shard:"
+							+ (unknown.isEmpty() ? " none" : unknown) + "), run shard " + manifest.shard + " again.");
+					System.exit(1);
+				}
+				sectionNames.addAll(shardSectionNames);
+			}
+			Collections.sort(sectionNames, new Comparator<String>() {
+				public int compare(String a, String b) {
+					String[] aIndices = a.split("\\.");
+					String[] bIndices = b.split("\\.");
+					int j = Integer.compare(Integer.parseInt(aIndices[1]), Integer.parseInt(bIndices[1]));
+					return j != 0 ? j : Integer.compare(Integer.parseInt(aIndices[0]), Integer.parseInt(bIndices[0]));
+				}
+			});
+			for (String sectionName : sectionNames) {
+				merged.sections.put(sectionName, structures.get(sectionName));
+			}
+			BillOfMaterials total = new BillOfMaterials();
+			for (String sectionName : sectionNames) {
+				total.add(sectionMaterials.get(sectionName));
+			}
+			BillOfMaterials.writeReports(sectionNames, sectionMaterials, total, folder + "materials");
+
+			if (merged.datapackNamespace != null) {
+				mergeDatapacks(folder, merged.datapackNamespace, shards);
+			}
+			merged.write(folder + "manifest.json");
+			System.out.println("Merged " + shards + " shards with " + merged.sections.size() + " sections.");
+			System.out.println("Block counts for whole image:");
+			System.out.print(total);
+			System.out.println("Manifest saved as manifest.json, bill of materials as materials.csv and materials.json.");
+		} catch (IOException e) {
+			System.out.println("Something went wrong:");
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	// copies the structures of all shard datapacks into <namespace>.zip
+	private static void mergeDatapacks(String folder, String namespace, int shards) throws IOException {
+		DatapackWriter datapack = new DatapackWriter(folder + namespace + ".zip", namespace);
+		String prefix = "data/" + namespace + "/structures/";
+		for (int shard = 1; shard <= shards; shard++) {
+			ZipInputStream zip = new ZipInputStream(
+					new FileInputStream(folder + namespace + "." + getName(shard, shards) + ".zip"));
+			ZipEntry entry;
+			while ((entry = zip.getNextEntry()) != null) {
+				if (entry.getName().startsWith(prefix)) {
+					datapack.addStructure(entry.getName().substring(prefix.length()), zip.readAllBytes());
+				}
+			}
+			zip.close();
+		}
+		datapack.close();
+		System.out.println("Structures of all shards saved in datapack " + namespace + ".zip");
+	}
+
+}
@@ -1,3 +1,4 @@
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.util.ArrayList;
@@ -92,6 +93,29 @@ public class StructureWriter {
 	}
 
 	public void writeToFile(String fileName) {
+		writeToFile(encode(), fileName);
+	}
+
+	// write an already encoded structure, see encode()
+	public static void writeToFile(byte[] encodedStructure, String fileName) {
+		try {
+			// replace instead of overwriting, the old file may be linked to
+			// other sections
+			File file = new File(fileName);
+			file.delete();
+			FileOutputStream fos = new FileOutputStream(file);
+			fos.write(encodedStructure);
+			fos.close();
+		} catch (Exception e) {
+			System.out.println("Something went wrong:");
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	// returns the gzipped structure file contents, so encoding (CPU) and
+	// writing (I/O) can happen on different threads
+	public byte[] encode() {
 		// hack: set size to a legal size to trick structure blocks into loading
 		// the file even from the UI, and not just when triggered by redstone
 		// xSize = 1;
@@ -117,17 +141,18 @@ public class StructureWriter {
 		structureContents.put("blocks", blocksTag);
 		CompoundTag structure = new CompoundTag("", structureContents);
 
-		// save structure file
+		// encode structure file
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
 		try {
-			FileOutputStream fos = new FileOutputStream(new File(fileName));
-			NBTOutputStream nos = new NBTOutputStream(fos);
+			NBTOutputStream nos = new NBTOutputStream(bos);
 			nos.writeTag(structure);
 			nos.close();
 		} catch (Exception e) {
 			System.out.println("Something went wrong:");
 			e.printStackTrace();
-			System.exit(0);
+			System.exit(1);
 		}
+		return bos.toByteArray();
 	}
 
 }
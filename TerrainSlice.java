@@ -1,55 +1,175 @@
 import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.HashMap;
 
 public class TerrainSlice {
 
 	// terrain data, indexed by z-coordinate, offset 1 (it's 130 high, not 128)
 	private ArrayList<PlacedBlock>[] blocks = new ArrayList[130];
 
+	// how the height of a block relates to its northern neighbor
+	private static final int RELATION_EQUAL = 0;
+	private static final int RELATION_NORTH_HIGHER = 1;
+	private static final int RELATION_NORTH_LOWER = 2;
+	private static final int RELATION_FREE = 3;
+
 	// config/input data
 	private int[][] colorVector;
 	private String bestBlockState[];
 	private boolean[] bestBlockNeedsSupport;
 	private String supportBlockState;
 
+	// block counts, kept up to date while placing blocks. colorBlockCounts is
+	// indexed like bestBlockState.
+	private int[] colorBlockCounts;
+	private int supportBlockCount = 0;
+	private int glassBlockCount = 0;
+
+	// heights of the water blocks by z, see findWater()
+	private int[][] waterHeights;
+
 	public TerrainSlice(int[][] colorVector, String bestBlockState[], boolean[] bestBlockNeedsSupport,
 			String supportBlockState) {
 		this.colorVector = colorVector;
 		this.bestBlockState = bestBlockState;
 		this.bestBlockNeedsSupport = bestBlockNeedsSupport;
 		this.supportBlockState = supportBlockState;
+		if (bestBlockState != null) {
+			colorBlockCounts = new int[bestBlockState.length];
+		}
 		for (int i = 0; i < 130; i++) {
 			blocks[i] = new ArrayList<PlacedBlock>();
 		}
 	}
 
-	public void countBlocks(HashMap<String, Integer> counts) {
-		for (int z = 0; z < 130; z++) {
-			for (PlacedBlock block : blocks[z]) {
-				String blockState = block.getBlockState();
-				if (counts.containsKey(blockState)) {
-					counts.put(blockState, counts.get(blockState) + 1);
+	// adds blocks placed so far (glass floor excluded) to the bill of materials
+	public void countBlocks(BillOfMaterials materials) {
+		if (colorBlockCounts != null) {
+			for (int i = 0; i < colorBlockCounts.length; i++) {
+				materials.add(bestBlockState[i], colorBlockCounts[i]);
+			}
+		}
+		materials.add(supportBlockState, supportBlockCount);
+		materials.add(MapConverter.BLOCK_STATE_GLASS, glassBlockCount);
+	}
+
+	public void createBasicTerrain() {
+		// give height 0 to first block, then in/decrease height for shading
+		int[] heights = new int[129];
+		int currentHeight = 0;
+		for (int z = 127; z >= 0; z--) {
+			heights[z + 1] = currentHeight;
+			String blockState = bestBlockState[colorVector[z][0]];
+			int shadingType = colorVector[z][1];
+			// update height for next block. not necessary for water.
+			if (!blockState.equals(MapConverter.BLOCK_STATE_WATER)) {
+				if (shadingType == MapConverter.VARIATION_DARKER) {
+					currentHeight++;
+				} else if (shadingType == MapConverter.VARIATION_LIGHTER) {
+					currentHeight--;
+				}
+			}
+		}
+		// extra block at the end for proper shading of last block on map
+		heights[0] = currentHeight;
+
+		placeBlocks(heights);
+	}
+
+	// Like createBasicTerrain, but instead of chaining heights down the whole
+	// column, give every block the lowest height its shading allows. Shading
+	// only depends on whether the northern neighbor is higher, lower or equal,
+	// not by how much, so a staircase can restart from the bottom whenever it
+	// changes direction. Water doesn't care about its northern neighbor at all,
+	// so the column is also cut after every body of water.
+	public void createMinimalTerrain() {
+		// index 0 is the extra shading block, index z + 1 is the block at z
+		int[] minHeights = new int[129];
+		// relation between index i - 1 and i, see RELATION_* constants above
+		int[] relations = new int[129];
+		for (int z = 0; z < 128; z++) {
+			int blockStateIndex = colorVector[z][0];
+			int shadingType = colorVector[z][1];
+			if (bestBlockState[blockStateIndex].equals(MapConverter.BLOCK_STATE_WATER)) {
+				// the glass block below the water must not end up below 0
+				minHeights[z + 1] = waterDepth(shadingType);
+				// keep connected water at the same level, otherwise free
+				if (z > 0 && bestBlockState[colorVector[z - 1][0]].equals(MapConverter.BLOCK_STATE_WATER)) {
+					relations[z + 1] = RELATION_EQUAL;
+				} else {
+					relations[z + 1] = RELATION_FREE;
+				}
+			} else {
+				if (bestBlockNeedsSupport[blockStateIndex]) {
+					minHeights[z + 1] = 1;
+				}
+				if (shadingType == MapConverter.VARIATION_DARKER) {
+					relations[z + 1] = RELATION_NORTH_HIGHER;
+				} else if (shadingType == MapConverter.VARIATION_LIGHTER) {
+					relations[z + 1] = RELATION_NORTH_LOWER;
 				} else {
-					counts.put(blockState, 1);
+					relations[z + 1] = RELATION_EQUAL;
 				}
 			}
 		}
+
+		// merge runs of equal height into groups
+		int[] groupOf = new int[129];
+		int groupCount = 0;
+		for (int i = 0; i < 129; i++) {
+			if (i == 0 || relations[i] != RELATION_EQUAL) {
+				groupCount++;
+			}
+			groupOf[i] = groupCount - 1;
+		}
+		int[] groupMinHeights = new int[groupCount];
+		// relation between group g - 1 and g
+		int[] groupRelations = new int[groupCount];
+		for (int i = 0; i < 129; i++) {
+			int group = groupOf[i];
+			groupMinHeights[group] = Math.max(groupMinHeights[group], minHeights[i]);
+			if (i > 0 && groupOf[i - 1] != group) {
+				groupRelations[group] = relations[i];
+			}
+		}
+
+		// lowest height allowed by the staircase coming from the north...
+		int[] fromNorth = new int[groupCount];
+		for (int g = 0; g < groupCount; g++) {
+			fromNorth[g] = groupMinHeights[g];
+			if (g > 0 && groupRelations[g] == RELATION_NORTH_LOWER) {
+				fromNorth[g] = Math.max(fromNorth[g], fromNorth[g - 1] + 1);
+			}
+		}
+		// ...and by the staircase coming from the south
+		int[] fromSouth = new int[groupCount];
+		for (int g = groupCount - 1; g >= 0; g--) {
+			fromSouth[g] = groupMinHeights[g];
+			if (g < groupCount - 1 && groupRelations[g + 1] == RELATION_NORTH_HIGHER) {
+				fromSouth[g] = Math.max(fromSouth[g], fromSouth[g + 1] + 1);
+			}
+		}
+
+		int[] heights = new int[129];
+		for (int i = 0; i < 129; i++) {
+			int group = groupOf[i];
+			heights[i] = Math.max(fromNorth[group], fromSouth[group]);
+		}
+
+		placeBlocks(heights);
 	}
 
-	public void createBasicTerrain() {
+	// heights indexed like blocks, heights[0] being the extra shading block
+	private void placeBlocks(int[] heights) {
 		// pay special attention to:
 		// an extra block necessary for correct shading of north-most block
 		// water columns not just being a single block in height
 		// water columns requiring glass to prevent them from spreading
 		// an offset of 1 in x-direction because squares are surrounded by glass
-
-		// give height 0 to first block, then in/decrease height for shading
-		int currentHeight = 0;
 		for (int z = 127; z >= 0; z--) {
 			int blockStateIndex = colorVector[z][0];
 			int shadingType = colorVector[z][1];
 			String blockState = bestBlockState[blockStateIndex];
+			int currentHeight = heights[z + 1];
 
 			ArrayList<PlacedBlock> blockList = blocks[z + 1];
 
@@ -57,46 +177,33 @@ public class TerrainSlice {
 				// normal block
 				PlacedBlock block = new PlacedBlock(blockState, currentHeight);
 				blockList.add(block);
+				colorBlockCounts[blockStateIndex]++;
 				if (bestBlockNeedsSupport[blockStateIndex]) {
 					PlacedBlock supportBlock = new PlacedBlock(supportBlockState, currentHeight - 1);
 					blockList.add(supportBlock);
-				}
-
-				// update height for next block. not necessary for water.
-				if (shadingType == MapConverter.VARIATION_DARKER) {
-					currentHeight++;
-				} else if (shadingType == MapConverter.VARIATION_LIGHTER) {
-					currentHeight--;
+					supportBlockCount++;
 				}
 			} else {
 				// water: depending on shade we need different depth
-				int waterDepth = 0;
-				switch (shadingType) {
-				case MapConverter.VARIATION_LIGHTER:
-					waterDepth = 1;
-					break;
-				case MapConverter.VARIATION_NORMAL:
-					waterDepth = 5;
-					break;
-				case MapConverter.VARIATION_DARKER:
-					waterDepth = 10;
-					break;
-				}
+				int waterDepth = waterDepth(shadingType);
 
 				// place water
 				for (int i = 0; i < waterDepth; i++) {
 					PlacedBlock waterBlock = new PlacedBlock(MapConverter.BLOCK_STATE_WATER, currentHeight - i);
 					blockList.add(waterBlock);
 				}
+				colorBlockCounts[blockStateIndex] += waterDepth;
 				// place glass block underneath to stop spills, glass around the
 				// sides to be added later...
 				PlacedBlock glassBlock = new PlacedBlock(MapConverter.BLOCK_STATE_GLASS, currentHeight - waterDepth);
 				blockList.add(glassBlock);
+				glassBlockCount++;
 			}
 		}
 		// extra block at the end for proper shading of last block on map
-		PlacedBlock shadingSupportBlock = new PlacedBlock(supportBlockState, currentHeight);
+		PlacedBlock shadingSupportBlock = new PlacedBlock(supportBlockState, heights[0]);
 		blocks[0].add(shadingSupportBlock);
+		supportBlockCount++;
 
 		// inspect all blocks and move everything up if negative height occurs
 		int minHeight = 0;
@@ -116,6 +223,18 @@ public class TerrainSlice {
 		}
 	}
 
+	private static int waterDepth(int shadingType) {
+		switch (shadingType) {
+		case MapConverter.VARIATION_LIGHTER:
+			return 1;
+		case MapConverter.VARIATION_NORMAL:
+			return 5;
+		case MapConverter.VARIATION_DARKER:
+			return 10;
+		}
+		return 0;
+	}
+
 	public void groundTerrain() {
 		// greedy approach: find lowest point. traverse from there both ways.
 		// when a peak is found, explore the rest and see how far down it can
@@ -215,22 +334,55 @@ public class TerrainSlice {
 		return lowestHeight;
 	}
 
-	public void surroundAllWater(TerrainSlice neighbor1, TerrainSlice neighbor2) {
-		// for every water block, place a glass block on all 4 sides if no block
-		// exists in that position
-		for (int z = 1; z < 129; z++) {
+	// remembers the heights of all water blocks, so neighbors can read them
+	// while this slice is being changed. call once the water won't move anymore.
+	public void findWater() {
+		waterHeights = new int[130][];
+		for (int z = 0; z < 130; z++) {
+			int count = 0;
+			for (PlacedBlock block : blocks[z]) {
+				if (block.getBlockState().equals(MapConverter.BLOCK_STATE_WATER)) {
+					count++;
+				}
+			}
+			waterHeights[z] = new int[count];
+			count = 0;
 			for (PlacedBlock block : blocks[z]) {
 				if (block.getBlockState().equals(MapConverter.BLOCK_STATE_WATER)) {
-					int height = block.getHeight();
-					this.addGlassBlockOrDoNothing(z - 1, height);
-					this.addGlassBlockOrDoNothing(z + 1, height);
-					neighbor1.addGlassBlockOrDoNothing(z, height);
-					neighbor2.addGlassBlockOrDoNothing(z, height);
+					waterHeights[z][count++] = block.getHeight();
 				}
 			}
 		}
 	}
 
+	// places glass in this slice next to water in this slice and next to water
+	// of the neighbors (null for none), which need findWater() done. only this
+	// slice is changed, so all slices can do this at the same time. glass is
+	// added in the order the slices used to surround their water one after
+	// another, west to east.
+	public void surroundAllWater(TerrainSlice westNeighbor, TerrainSlice eastNeighbor) {
+		for (int z = 0; z < 130; z++) {
+			if (westNeighbor != null) {
+				addGlassBlocksOrDoNothing(z, westNeighbor.waterHeights[z]);
+			}
+			if (z > 0) {
+				addGlassBlocksOrDoNothing(z, waterHeights[z - 1]);
+			}
+			if (z < 129) {
+				addGlassBlocksOrDoNothing(z, waterHeights[z + 1]);
+			}
+			if (eastNeighbor != null) {
+				addGlassBlocksOrDoNothing(z, eastNeighbor.waterHeights[z]);
+			}
+		}
+	}
+
+	private void addGlassBlocksOrDoNothing(int z, int[] heights) {
+		for (int height : heights) {
+			addGlassBlockOrDoNothing(z, height);
+		}
+	}
+
 	// places a glass block if no block exists in this position yet
 	public void addGlassBlockOrDoNothing(int z, int height) {
 		for (PlacedBlock block : blocks[z]) {
@@ -241,6 +393,7 @@ public class TerrainSlice {
 		// block space not occupied yet, place glass block
 		PlacedBlock glass = new PlacedBlock(MapConverter.BLOCK_STATE_GLASS, height);
 		blocks[z].add(glass);
+		glassBlockCount++;
 	}
 
 	public void addGlassFloor() {
@@ -1,4 +1,5 @@
-import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class TerrainSquare {
 
@@ -20,24 +21,38 @@ public class TerrainSquare {
 		this.mode = mode;
 	}
 
-	public HashMap<String, Integer> countBlocks() {
-		HashMap<String, Integer> counts = new HashMap<String, Integer>();
+	// counts are collected while placing blocks, this doesn't walk the terrain
+	public BillOfMaterials countBlocks() {
+		BillOfMaterials materials = new BillOfMaterials();
 		for (TerrainSlice slice : slices) {
-			slice.countBlocks(counts);
+			slice.countBlocks(materials);
 		}
-		return counts;
+		return materials;
 	}
 
-	// create terrain independently for every column, i.e. x-coordinate.
-	public void createTerrain() {
+	// create terrain independently for every column, i.e. x-coordinate. the
+	// columns are spread over pool, only lifting in FLAT mode looks at all of
+	// them at once.
+	public void createTerrain(ForkJoinPool pool) {
 		// first and last slices containing only glass floor
 		slices[0] = new TerrainSlice(null, null, null, null);
 		slices[129] = new TerrainSlice(null, null, null, null);
 		// normal slices with proper terrain, initially without water cylinders
-		for (int x = 0; x < 128; x++) {
-			slices[x + 1] = new TerrainSlice(colorMatrix[x], bestBlockState, bestBlockNeedsSupport, supportBlockState);
-			slices[x + 1].createBasicTerrain();
-		}
+		forEachSlice(pool, 1, 129, new SliceOperation() {
+			void apply(int index) {
+				slices[index] = new TerrainSlice(colorMatrix[index - 1], bestBlockState, bestBlockNeedsSupport,
+						supportBlockState);
+				if (mode == MapConverter.Mode.STAIRCASE) {
+					slices[index].createMinimalTerrain();
+				} else {
+					slices[index].createBasicTerrain();
+					if (mode == MapConverter.Mode.GROUNDED) {
+						// cut up staircases so it's only v-shapes on the ground
+						slices[index].groundTerrain();
+					}
+				}
+			}
+		});
 
 		if (mode == MapConverter.Mode.FLAT) {
 			// if water required, adjust height to be uniform across whole map
@@ -52,16 +67,56 @@ public class TerrainSquare {
 					break;
 				}
 			}
-		} else if (mode == MapConverter.Mode.GROUNDED) {
-			// cut up staircases so it's only v-shapes on the ground
-			for (int x = 0; x < 128; x++) {
-				slices[x + 1].groundTerrain();
+		}
+
+		// add water cylinders. every slice only adds glass to itself, reading
+		// the water of its neighbors, which is found for all slices first.
+		forEachSlice(pool, 0, 130, new SliceOperation() {
+			void apply(int index) {
+				slices[index].findWater();
+			}
+		});
+		forEachSlice(pool, 0, 130, new SliceOperation() {
+			void apply(int index) {
+				slices[index].surroundAllWater(index > 0 ? slices[index - 1] : null,
+						index < 129 ? slices[index + 1] : null);
 			}
+		});
+	}
+
+	private abstract static class SliceOperation {
+		abstract void apply(int index);
+	}
+
+	// runs operation for slices [from, to[ and waits for all
+	private static void forEachSlice(ForkJoinPool pool, int from, int to, SliceOperation operation) {
+		pool.invoke(new SliceTask(from, to, operation));
+	}
+
+	private static class SliceTask extends RecursiveAction {
+		private static final long serialVersionUID = 2956318457165387204L;
+		// below this, splitting costs more than it gains
+		private static final int SLICES_PER_TASK = 8;
+
+		private int from;
+		private int to;
+		private SliceOperation operation;
+
+		SliceTask(int from, int to, SliceOperation operation) {
+			this.from = from;
+			this.to = to;
+			this.operation = operation;
 		}
 
-		// add water cylinders
-		for (int x = 0; x < 128; x++) {
-			slices[x + 1].surroundAllWater(slices[x], slices[x + 2]);
+		protected void compute() {
+			if (to - from <= SLICES_PER_TASK) {
+				for (int index = from; index < to; index++) {
+					operation.apply(index);
+				}
+			} else {
+				int middle = (from + to) / 2;
+				invokeAll(new SliceTask(from, middle, operation), new SliceTask(middle, to, operation));
+			}
 		}
 	}
 
@@ -72,6 +127,11 @@ public class TerrainSquare {
 	}
 
 	public void saveToStructure(String fileName) {
+		StructureWriter.writeToFile(encodeStructure(), fileName);
+	}
+
+	// returns the contents of the structure file
+	public byte[] encodeStructure() {
 		// get height
 		int height = 0;
 		for (TerrainSlice slice : slices) {
@@ -87,8 +147,7 @@ public class TerrainSquare {
 			slices[x].writeAllBlocks(writer, x);
 		}
 
-		// write structure
-		writer.writeToFile(fileName);
+		return writer.encode();
 	}
 
 }
@@ -0,0 +1,63 @@
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// PaletteSearch evaluating as many palette colors per instruction as the CPU's
+// vector registers allow. Needs --add-modules jdk.incubator.vector to compile
+// and run, so it's kept out of the main sources and compiled separately (see
+// README.md). PaletteSearch.create() only loads it if it's available.
+public class VectorPaletteSearch extends PaletteSearch {
+
+	private static final VectorSpecies<Float> FLOAT_SPECIES = FloatVector.SPECIES_PREFERRED;
+	// same number of lanes as FLOAT_SPECIES
+	private static final VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_PREFERRED;
+
+	// palette positions of the first vector: 0, 1, 2, ...
+	private IntVector firstPositions;
+	// palette length rounded up to full vectors, padding makes this safe
+	private int vectorSize;
+
+	public VectorPaletteSearch(int[][][] baseColorsLAB, boolean[][] allowColor) {
+		super(baseColorsLAB, allowColor);
+		int lanes = FLOAT_SPECIES.length();
+		firstPositions = IntVector.zero(INT_SPECIES).addIndex(1);
+		vectorSize = (size + lanes - 1) / lanes * lanes;
+	}
+
+	public int findClosest(int l, int a, int b) {
+		if (size == 0) {
+			return 0;
+		}
+		int lanes = FLOAT_SPECIES.length();
+		FloatVector vl = FloatVector.broadcast(FLOAT_SPECIES, l);
+		FloatVector va = FloatVector.broadcast(FLOAT_SPECIES, a);
+		FloatVector vb = FloatVector.broadcast(FLOAT_SPECIES, b);
+		// smallest difference and its palette position, separately per lane
+		FloatVector smallestDifferences = FloatVector.broadcast(FLOAT_SPECIES, Float.MAX_VALUE);
+		IntVector bestMatches = IntVector.zero(INT_SPECIES);
+		IntVector positions = firstPositions;
+		for (int i = 0; i < vectorSize; i += lanes) {
+			FloatVector dl = vl.sub(FloatVector.fromArray(FLOAT_SPECIES, paletteL, i));
+			FloatVector da = va.sub(FloatVector.fromArray(FLOAT_SPECIES, paletteA, i));
+			FloatVector db = vb.sub(FloatVector.fromArray(FLOAT_SPECIES, paletteB, i));
+			FloatVector differences = dl.mul(dl).add(da.mul(da)).add(db.mul(db));
+			// strictly smaller keeps the earliest position per lane on ties
+			VectorMask<Float> smaller = differences.lt(smallestDifferences);
+			smallestDifferences = smallestDifferences.blend(differences, smaller);
+			bestMatches = bestMatches.blend(positions, smaller.cast(INT_SPECIES));
+			positions = positions.add(lanes);
+		}
+		// earliest position among the lanes holding the overall smallest difference
+		float smallestDifference = smallestDifferences.reduceLanes(VectorOperators.MIN);
+		VectorMask<Integer> isSmallest = smallestDifferences.eq(smallestDifference).cast(INT_SPECIES);
+		int bestMatch = bestMatches.reduceLanes(VectorOperators.MIN, isSmallest);
+		return paletteIndices[bestMatch];
+	}
+
+	public String getDescription() {
+		return "vector, " + FLOAT_SPECIES.length() + " lanes";
+	}
+
+}